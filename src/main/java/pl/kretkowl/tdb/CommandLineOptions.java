@@ -1,23 +1,49 @@
 package pl.kretkowl.tdb;
 
+import java.util.List;
+
 import lombok.Builder;
+import lombok.Singular;
 import lombok.Value;
 
 @Value
-@Builder
+@Builder(toBuilder = true)
 public class CommandLineOptions {
 
     Command command;
 
     boolean index;
 
-    String file;
+    /**
+     * Number of threads parsing documents, 0 - number of processors; for
+     * query number of threads running large scans, 0 - one.
+     */
+    int parallelism;
+
+    /**
+     * Megabytes of rows query may sort or buffer in memory, 0 - quarter of heap.
+     */
+    int memoryLimit;
+
+    /**
+     * Files to index, "-" stands for list of files read from standard input
+     * (separated by new lines or NUL characters).
+     */
+    @Singular
+    List<String> files;
 
     String query;
 
     OutputType outputType;
 
+    /**
+     * Returns first file to index, null when there is none.
+     */
+    public String getFile() {
+        return files.isEmpty() ? null : files.get(0);
+    }
+
     public enum OutputType { CSV, SINGLE_ROW, SINGLE_VALUE, TABLE }
 
-    public enum Command { INIT, REBUILD, INDEX, ROOT, QUERY }
+    public enum Command { INIT, REBUILD, INDEX, COMPACT, ROOT, QUERY, SERVE, WATCH }
 }
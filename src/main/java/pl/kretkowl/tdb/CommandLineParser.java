@@ -13,24 +13,37 @@ public class CommandLineParser {
         clob.outputType(OutputType.CSV);
         
         int endIndex = args.length-1;
-        if (command == Command.INDEX) {
-            if (args.length-1 == 0)
-                throw new IllegalArgumentException("filename is required");
-            clob.file(args[args.length-1]);
-            endIndex--;
-        } 
         for (int i=1; i<=endIndex; i++) {
             if (command == Command.QUERY) {
                 if (args[i].equals("-r")) { clob.outputType(OutputType.SINGLE_ROW); continue; }
                 else if (args[i].equals("-v")) { clob.outputType(OutputType.SINGLE_VALUE); continue; }
                 else if (args[i].equals("-t")) { clob.outputType(OutputType.TABLE); continue; }
                 else if (args[i].equals("-q")) { clob.query(args[++i]); continue; }
+                else if (args[i].equals("-m")) { clob.memoryLimit(parsePositive(args[++i])); continue; }
+            } if (command == Command.INDEX) {
+                if (args[i].equals("-") || !args[i].startsWith("-")) { clob.file(args[i]); continue; }
             } if (command == Command.INIT) {
                 if (args[i].equals("-i")) { clob.index(true); continue; }
+            } if (command == Command.INIT || command == Command.REBUILD || command == Command.INDEX || command == Command.QUERY) {
+                if (args[i].equals("-j")) { clob.parallelism(parsePositive(args[++i])); continue; }
             }
             throw new IllegalArgumentException("unknown option " + args[i]);
         }
 
-        return clob.build();
+        var clo = clob.build();
+        if (command == Command.INDEX && clo.getFiles().isEmpty())
+            throw new IllegalArgumentException("filename is required");
+        return clo;
+    }
+
+    private static int parsePositive(String arg) {
+        try {
+            int ret = Integer.parseInt(arg);
+            if (ret > 0)
+                return ret;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("positive number expected: " + arg);
     }
 }
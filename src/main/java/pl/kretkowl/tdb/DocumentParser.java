@@ -1,21 +1,26 @@
 package pl.kretkowl.tdb;
 
-import java.io.BufferedReader;
 import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Spliterator;
 import java.util.Spliterators;
-import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.Value;
 
+/**
+ * Extracts entries from markdown document. Entry is a run of attribute lines
+ * (indented <code>- key: value</code>) up to next header (line starting with
+ * #); its line is the line of that header (0 for text before first header).
+ */
 public class DocumentParser {
 
     @Value
@@ -24,22 +29,108 @@ public class DocumentParser {
         Map<String, String> attributes;
     }
 
-    public Stream<UnboundEntry> parse(Reader r) {
-        var it = new EntryIterator(r instanceof BufferedReader ? (BufferedReader) r : new BufferedReader(r));
+    /**
+     * Parses UTF-8 encoded document between position and limit of content.
+     * Content is scanned as bytes, only keys and values of attributes are
+     * decoded; it must not change until stream is consumed.
+     */
+    public Stream<UnboundEntry> parse(ByteBuffer content) {
+        var it = new EntryIterator(content);
 
         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.DISTINCT), false);
     }
 
-    @RequiredArgsConstructor
+    @SneakyThrows
+    public Stream<UnboundEntry> parse(Reader r) {
+        var text = new StringWriter();
+        r.transferTo(text);
+        return parse(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
     private static class EntryIterator implements Iterator<UnboundEntry> {
 
-        private static Pattern ATTRIBUTE = Pattern.compile("^\\s+- ([a-zA-Z_][-a-zA-Z0-9_]*):");
-        final BufferedReader r;
+        final ByteBuffer content;
+        final int limit;
+        int position;
+        // bounds of line read last, without line terminator
+        int lineStart, lineEnd;
         int currentLine = 0;
         boolean atEnd;
         UnboundEntry current;
 
-        @SneakyThrows
+        EntryIterator(ByteBuffer content) {
+            this.content = content;
+            this.limit = content.limit();
+            this.position = content.position();
+        }
+
+        /**
+         * Moves to next line (ended with \n, \r or \r\n, as in
+         * BufferedReader.readLine); returns false at end of content.
+         */
+        private boolean readLine() {
+            if (position >= limit)
+                return false;
+            lineStart = position;
+            int i = position;
+            byte b = 0;
+            while (i < limit && (b = content.get(i)) != '\n' && b != '\r')
+                i++;
+            lineEnd = i;
+            if (i < limit)
+                i++;
+            if (b == '\r' && i < limit && content.get(i) == '\n')
+                i++;
+            position = i;
+            return true;
+        }
+
+        /**
+         * Adds attribute of current line, when it is one: whitespace, "- ",
+         * key ([a-zA-Z_][-a-zA-Z0-9_]*) and ":", followed by value.
+         */
+        private void readAttribute(Map<String, String> attributes) {
+            int i = lineStart;
+            while (i < lineEnd && isSpace(content.get(i)))
+                i++;
+            if (i == lineStart || i + 2 >= lineEnd || content.get(i) != '-' || content.get(i + 1) != ' ' || !isKeyStart(content.get(i + 2)))
+                return;
+            int keyStart = i + 2;
+            i = keyStart + 1;
+            while (i < lineEnd && isKeyPart(content.get(i)))
+                i++;
+            if (i == lineEnd || content.get(i) != ':')
+                return;
+            int keyEnd = i;
+            // TODO support for multiline values
+            int valueStart = keyEnd + 1, valueEnd = lineEnd;
+            while (valueStart < valueEnd && (content.get(valueStart) & 0xff) <= ' ')
+                valueStart++;
+            while (valueEnd > valueStart && (content.get(valueEnd - 1) & 0xff) <= ' ')
+                valueEnd--;
+            attributes.put(string(keyStart, keyEnd).toLowerCase(), string(valueStart, valueEnd));
+        }
+
+        private String string(int from, int to) {
+            if (content.hasArray())
+                return new String(content.array(), content.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+            var bytes = new byte[to - from];
+            content.duplicate().position(from).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t' || b == 0x0b || b == '\f';
+        }
+
+        private static boolean isKeyStart(byte b) {
+            return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_';
+        }
+
+        private static boolean isKeyPart(byte b) {
+            return isKeyStart(b) || (b >= '0' && b <= '9') || b == '-';
+        }
+
         private void tryRead() {
             if (atEnd || current != null)
                 return;
@@ -47,20 +138,15 @@ public class DocumentParser {
                 boolean eof = false;
                 UnboundEntry ue = new UnboundEntry(currentLine, new HashMap<>());
                 do {
-                    String line = r.readLine();
+                    boolean read = readLine();
                     currentLine++;
-                    if (line == null) {
+                    if (!read) {
                         eof = true;
                         break;
-                    } else if (line.startsWith("#")) { // header
+                    } else if (lineStart < lineEnd && content.get(lineStart) == '#') { // header
                         break;
                     }
-                    var m = ATTRIBUTE.matcher(line);
-                    if (m.find()) {
-                        var attribute = m.group(1).toLowerCase();
-                        var value = line.substring(m.end()).trim(); // TODO support for multiline values
-                        ue.attributes.put(attribute, value);
-                    }
+                    readAttribute(ue.attributes);
                 } while (true);
                 if (ue.attributes.isEmpty()) {
                     if (eof) {
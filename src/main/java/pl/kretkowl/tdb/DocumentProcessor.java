@@ -1,6 +1,9 @@
 package pl.kretkowl.tdb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -22,13 +25,37 @@ public class DocumentProcessor {
     @Setter
     private Path root;
 
+    /**
+     * Files up to this size are read into buffer reused by thread, larger
+     * ones are memory-mapped.
+     */
+    static final int POOLED_SIZE = 1 << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 << 10));
+
     @SneakyThrows
     public List<Entry> processDocument(Document d) {
         Path path = findDocumentFile(d);
         
-        return parser.parse(Files.newBufferedReader(path))
-            .map(ue -> new Entry(d, ue.getLine(), ue.getAttributes()))
-            .collect(Collectors.toList());
+        try (var channel = FileChannel.open(path)) {
+            return parser.parse(read(channel))
+                .map(ue -> new Entry(d, ue.getLine(), ue.getAttributes()))
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > POOLED_SIZE)
+            return channel.map(MapMode.READ_ONLY, 0, size);
+        var buffer = BUFFER.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(POOLED_SIZE);
+            BUFFER.set(buffer);
+        }
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+            ;
+        return buffer.flip();
     }
 
     /**
@@ -1,5 +1,6 @@
 package pl.kretkowl.tdb;
 
+import java.io.PrintStream;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.stream.Collector;
@@ -12,6 +13,7 @@ import lombok.ToString;
 import static java.util.stream.Collectors.toList;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 
 import static java.util.stream.Collectors.joining;
 
@@ -20,13 +22,25 @@ import pl.kretkowl.tdb.CommandLineOptions.OutputType;
 public class OutputFormatter {
 
     public void prepareOutput(OutputType outputType, Stream<Map<String, String>> result) {
+        prepareOutput(outputType, null, result);
+    }
+
+    public void prepareOutput(OutputType outputType, List<String> columns, Stream<Map<String, String>> result) {
+        prepareOutput(outputType, columns, result, System.out);
+    }
+
+    /**
+     * Prints result. When columns are known, CSV rows are printed while they
+     * are read, else columns are collected from all rows first.
+     */
+    public void prepareOutput(OutputType outputType, List<String> columns, Stream<Map<String, String>> result, PrintStream out) {
         switch (outputType) {
             case SINGLE_VALUE:
                 result
                     .findFirst()
                     .flatMap(row -> row.entrySet().stream().findAny())
                     .map(Entry::getValue)
-                    .ifPresent(System.out::println);
+                    .ifPresent(out::println);
                 break;
             case SINGLE_ROW:
                 result
@@ -34,18 +48,34 @@ public class OutputFormatter {
                     .map(row -> row.entrySet().stream())
                     .orElseGet(Stream::empty)
                     .map(e -> e.getKey() + ": " + e.getValue())
-                    .forEach(System.out::println);
+                    .forEach(out::println);
                 break;
             case CSV: {
+                if (columns != null) {
+                    // header printed with first row, empty result is empty line as below
+                    var header = new boolean[1];
+                    result
+                        .map(ma -> columns.stream().map(ma::get).collect(joining(";")))
+                        .forEachOrdered(row -> {
+                            if (!header[0]) {
+                                out.println(columns.stream().collect(joining(";")));
+                                header[0] = true;
+                            }
+                            out.println(row);
+                        });
+                    if (!header[0])
+                        out.println();
+                    break;
+                }
                 var res = result.collect(toList());
-                var columns = res.stream()
+                var resColumns = res.stream()
                     .flatMap(ma -> ma.keySet().stream())
                     .distinct()
                     .collect(toList());
-                System.out.println(columns.stream().collect(joining(";")));
+                out.println(resColumns.stream().collect(joining(";")));
                 res.stream()
-                    .map(ma -> columns.stream().map(ma::get).collect(joining(";")))
-                    .forEach(System.out::println);
+                    .map(ma -> resColumns.stream().map(ma::get).collect(joining(";")))
+                    .forEach(out::println);
                 break;
             }
             case TABLE: {
@@ -57,7 +87,7 @@ public class OutputFormatter {
                     int length;
                 };
                 var res = result.collect(toList());
-                var columns =
+                var columnData =
                         res.stream()
                             .flatMap(ma -> ma.entrySet().stream())
                             .map(e -> new ColumnData(
@@ -67,13 +97,13 @@ public class OutputFormatter {
                                     LinkedHashMap::new, 
                                     (m, cd) -> m.merge(cd.name, cd.length,(v1, v2) -> v1 > v2 ? v1 : v2), 
                                     (m1, m2) -> m2.forEach((k,v) -> m1.merge(k, v, (v1, v2) -> v1 > v2 ? v1 : v2)));
-                System.out.println(columns.entrySet().stream().map(cd -> " " + cd.getKey() + " ".repeat(cd.getValue() - cd.getKey().length() + 1)).collect(tableJoin()));
-                System.out.println(columns.entrySet().stream().map(cd -> "-".repeat(cd.getValue() + 2)).collect(tableJoin()));
+                out.println(columnData.entrySet().stream().map(cd -> " " + cd.getKey() + " ".repeat(cd.getValue() - cd.getKey().length() + 1)).collect(tableJoin()));
+                out.println(columnData.entrySet().stream().map(cd -> "-".repeat(cd.getValue() + 2)).collect(tableJoin()));
                 res.stream()
-                    .map(ma -> columns.entrySet().stream()
+                    .map(ma -> columnData.entrySet().stream()
                         .map(c -> " " + ma.get(c.getKey()) + " ".repeat(c.getValue() - ma.getOrDefault(c.getKey(), "null").length() + 1))
                         .collect(tableJoin()))
-                    .forEach(System.out::println);
+                    .forEach(out::println);
                 break;
             }
         }
@@ -0,0 +1,304 @@
+package pl.kretkowl.tdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lombok.SneakyThrows;
+import pl.kretkowl.tdb.CommandLineOptions.Command;
+import pl.kretkowl.tdb.CommandLineOptions.OutputType;
+
+/**
+ * Keeps db of root in memory and runs commands sent by other tdb processes,
+ * so they do not load index (nor start cold JVM) themselves. Server listens
+ * on loopback, its port and token are written to .tdb.serve in root; token
+ * is sent first by client, so only users that can read root can use server.
+ * Every client is served by its own thread; queries read snapshot of db, so
+ * they run while index or rebuild changes it (see {@link SharedDB}).
+ * <p>
+ * Client sends command options, then server sends output of command in
+ * frames - type ('O' standard output, 'E' standard error), length and bytes -
+ * followed by 'X' frame with exit code.
+ */
+public class Server {
+
+    /**
+     * Commands run by server when it is running.
+     */
+    static final Set<Command> SERVED = Set.of(Command.QUERY, Command.INDEX, Command.REBUILD);
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    /**
+     * Longest string (query, path) accepted from client; lengths are checked
+     * before buffer is allocated, so no client can exhaust memory of server.
+     */
+    static final int MAX_STRING_LENGTH = 1 << 20;
+    /**
+     * Longest frame sent by server, longer output is split.
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final Tdb tdb;
+    private final StoreManager sm;
+    private final ServerSocket socket;
+    private final String token;
+    private final SharedDB db;
+    private final ExecutorService clients = Executors.newCachedThreadPool(r -> {
+        var thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @SneakyThrows
+    public Server(Tdb tdb, StoreManager sm) {
+        this.tdb = tdb;
+        this.sm = sm;
+        this.db = new SharedDB(sm);
+        this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        var bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        var token = new StringBuilder();
+        for (var b : bytes)
+            token.append(String.format("%02x", b));
+        this.token = token.toString();
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Serves commands until stopped (or killed), removes server file
+     * afterwards.
+     */
+    @SneakyThrows
+    public void run() {
+        var serverFile = sm.getRoot().resolve(StoreManager.SERVER_FILE);
+        var hook = new Thread(() -> stop());
+        Runtime.getRuntime().addShutdownHook(hook);
+        writeServerFile(serverFile);
+        System.err.println("serving " + sm.getRoot().normalize() + " on port " + getPort());
+        try {
+            while (!socket.isClosed()) {
+                Socket client;
+                try {
+                    client = socket.accept();
+                } catch (IOException e) {
+                    if (!socket.isClosed())
+                        System.err.println("accept failed: " + e.getMessage());
+                    continue;
+                }
+                clients.execute(() -> {
+                    try (client) {
+                        serve(client);
+                    } catch (IOException e) {
+                        System.err.println("client failed: " + e.getMessage());
+                    }
+                });
+            }
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // shutting down already
+            }
+        }
+    }
+
+    /**
+     * Stops accepting commands and removes server file.
+     */
+    @SneakyThrows
+    public void stop() {
+        socket.close();
+        clients.shutdown();
+        var serverFile = sm.getRoot().resolve(StoreManager.SERVER_FILE);
+        if (Files.exists(serverFile) && Files.readString(serverFile).contains(token))
+            Files.delete(serverFile);
+    }
+
+    private void writeServerFile(Path serverFile) throws IOException {
+        var tmp = serverFile.resolveSibling(StoreManager.SERVER_FILE + ".tmp");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tmp);
+        }
+        Files.writeString(tmp, getPort() + "\n" + token + "\n");
+        Files.move(tmp, serverFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void serve(Socket client) throws IOException {
+        var in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        var frames = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        if (!token.equals(readString(in, token.length()))) {
+            new PrintStream(new FrameOutputStream(frames, 'E'), true, StandardCharsets.UTF_8).println("invalid server token");
+            frames.writeByte('X');
+            frames.writeInt(-1);
+            frames.flush();
+            return;
+        }
+        var clo = CommandLineOptions.builder()
+            .command(Command.valueOf(readString(in, MAX_STRING_LENGTH)))
+            .outputType(OutputType.valueOf(readString(in, MAX_STRING_LENGTH)))
+            .parallelism(in.readInt())
+            .memoryLimit(in.readInt())
+            .query(readString(in, MAX_STRING_LENGTH))
+            .files(readStrings(in))
+            .build();
+        var out = new PrintStream(new BufferedOutputStream(new FrameOutputStream(frames, 'O'), 8192), false, StandardCharsets.UTF_8);
+        var err = new PrintStream(new FrameOutputStream(frames, 'E'), true, StandardCharsets.UTF_8);
+        int exitCode = 0;
+        try {
+            tdb.runServed(clo, sm, db, out, err);
+        } catch (Exception e) {
+            out.flush();
+            err.println(e.getMessage());
+            exitCode = -2;
+        }
+        out.flush();
+        frames.writeByte('X');
+        frames.writeInt(exitCode);
+        frames.flush();
+    }
+
+    /**
+     * Runs command on server of root of start directory, passing its output
+     * to given streams. Returns exit code, or nothing when no server is
+     * running - then command should be run by caller.
+     */
+    static OptionalInt forward(Path start, CommandLineOptions clo, PrintStream out, PrintStream err) throws IOException {
+        Path serverFile;
+        try {
+            serverFile = StoreManager.findRoot(start).resolve(StoreManager.SERVER_FILE);
+        } catch (RuntimeException e) {
+            return OptionalInt.empty();
+        }
+        if (!Files.exists(serverFile))
+            return OptionalInt.empty();
+        var lines = Files.readAllLines(serverFile);
+        if (lines.size() < 2)
+            return OptionalInt.empty();
+        try (var socket = new Socket()) {
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(lines.get(0))), CONNECT_TIMEOUT);
+            } catch (IOException | NumberFormatException e) {
+                return OptionalInt.empty();
+            }
+            var request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeString(request, lines.get(1));
+            writeString(request, clo.getCommand().name());
+            writeString(request, clo.getOutputType().name());
+            request.writeInt(clo.getParallelism());
+            request.writeInt(clo.getMemoryLimit());
+            writeString(request, clo.getQuery());
+            request.writeInt(clo.getFiles().size());
+            for (var file : clo.getFiles())
+                writeString(request, file);
+            request.flush();
+            var frames = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                int type = frames.readByte();
+                if (type == 'X') {
+                    out.flush();
+                    err.flush();
+                    return OptionalInt.of(frames.readInt());
+                }
+                int length = frames.readInt();
+                if (length < 0 || length > MAX_FRAME_LENGTH)
+                    throw new IOException("invalid frame of length " + length + " from server");
+                var bytes = new byte[length];
+                frames.readFully(bytes);
+                (type == 'E' ? err : out).write(bytes);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Reads string, failing when it is longer than given number of bytes.
+     */
+    private static String readString(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > maxLength)
+            throw new IOException("string of length " + length + " sent, at most " + maxLength + " accepted");
+        var b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        var ret = new ArrayList<String>();
+        for (int i = in.readInt(); i > 0; i--)
+            ret.add(readString(in, MAX_STRING_LENGTH));
+        return ret;
+    }
+
+    /**
+     * Writes every chunk of bytes as frames of given type, split to
+     * {@link #MAX_FRAME_LENGTH}.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream frames;
+        private final char type;
+
+        FrameOutputStream(DataOutputStream frames, char type) {
+            this.frames = frames;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int frame = Math.min(len, MAX_FRAME_LENGTH);
+                frames.writeByte(type);
+                frames.writeInt(frame);
+                frames.write(b, off, frame);
+                off += frame;
+                len -= frame;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            frames.flush();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package pl.kretkowl.tdb;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+import lombok.Value;
+import pl.kretkowl.tdb.model.DB;
+
+/**
+ * Db of root read and changed by many threads. Readers get snapshot - db that
+ * is never changed afterwards, so they neither wait for writers nor see part
+ * of their changes. Writers, one at a time, change copy of current snapshot
+ * (see {@link DB#copy()}) and publish it when all changes were applied.
+ * Snapshot is loaded again when index files were changed by other process,
+ * or written as a whole (then changes need not be kept in memory).
+ */
+public class SharedDB {
+
+    /**
+     * Db with version of index files it was loaded from, null when it
+     * should be loaded again.
+     */
+    @Value
+    private static class Snapshot {
+        DB db;
+        Object version;
+    }
+
+    private final StoreManager sm;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    /**
+     * True while writer changes index files, which are not read then.
+     */
+    private volatile boolean updating;
+
+    public SharedDB(StoreManager sm) {
+        this.sm = sm;
+    }
+
+    /**
+     * Returns current snapshot, it must not be changed.
+     */
+    public DB snapshot() {
+        var snapshot = current.get();
+        if (snapshot != null && updating)
+            return snapshot.db;
+        var version = sm.version();
+        if (snapshot != null && Objects.equals(snapshot.version, version))
+            return snapshot.db;
+        var db = sm.load();
+        current.compareAndSet(snapshot, new Snapshot(db, version));
+        return db;
+    }
+
+    /**
+     * Applies changes to copy of current snapshot, then publishes it. Changes
+     * get version of index files copy was loaded at, and return version files
+     * are at after they were changed, null when other process changed them
+     * too. Snapshot is loaded again on next read then, and also when index
+     * was written as a whole (compacted), so changes kept in memory since
+     * start do not pile up. When changes fail, current snapshot stays.
+     * Returns version returned by changes.
+     */
+    public synchronized Object update(BiFunction<DB, Object, Object> changes) {
+        snapshot();
+        var snapshot = current.get();
+        var db = snapshot.db.copy();
+        updating = true;
+        try {
+            var version = changes.apply(db, snapshot.version);
+            current.set(new Snapshot(db, sm.hasLog() ? version : null));
+            return version;
+        } finally {
+            updating = false;
+        }
+    }
+}
@@ -1,20 +1,51 @@
 package pl.kretkowl.tdb;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.model.DBCodec;
+import pl.kretkowl.tdb.model.DeltaLog;
 
+/**
+ * Manages index files in root directory: base index (.tdb) written as a whole
+ * and log (.tdb.log) of changes appended since. Loading merges both, storing
+ * rewrites base and empties log (compaction).
+ */
 @AllArgsConstructor
 public class StoreManager {
 
     public static final Path DB_FILE = Paths.get(".tdb");
+    public static final Path LOG_FILE = Paths.get(".tdb.log");
+    public static final Path LOCK_FILE = Paths.get(".tdb.lock");
+    /**
+     * Port and token of running server (see {@link Server}).
+     */
+    public static final Path SERVER_FILE = Paths.get(".tdb.serve");
+
+    /**
+     * Log smaller than that is never compacted automatically.
+     */
+    static final long MIN_COMPACTION_LOG_SIZE = 64 * 1024;
+    /**
+     * Log is compacted automatically when it grows over this fraction of base size.
+     */
+    static final double COMPACTION_LOG_RATIO = 0.25;
 
     @Getter
     private Path root;
@@ -33,20 +64,185 @@ public class StoreManager {
         return root.resolve(DB_FILE);
     }
 
+    private Path getLogFilePath() {
+        return root.resolve(LOG_FILE);
+    }
+
+    /**
+     * Maps index file into memory, entries are decoded only when query reaches them.
+     * Changes from log are applied on top of it. Files are read without lock,
+     * so when other process changed them meanwhile (base and log would not
+     * match), they are read again.
+     */
     public DB load() {
-        try (var is = new ObjectInputStream(Files.newInputStream(getDbFilePath()))) {
-            return (DB) is.readObject();
+        while (true) {
+            var version = version();
+            var db = readFiles();
+            if (version().equals(version))
+                return db;
+        }
+    }
+
+    private DB readFiles() {
+        DB db;
+        try (var channel = FileChannel.open(getDbFilePath())) {
+            db = DBCodec.read(channel.map(MapMode.READ_ONLY, 0, channel.size()));
         } catch (Exception e) {
             throw new RuntimeException("error loading " + getDbFilePath(), e);
         }
+        try {
+            DeltaLog.decode(ByteBuffer.wrap(Files.readAllBytes(getLogFilePath())))
+                .forEach(c -> c.applyTo(db));
+        } catch (NoSuchFileException e) {
+            // no changes since index was written
+        } catch (Exception e) {
+            throw new RuntimeException("error loading " + getLogFilePath(), e);
+        }
+        return db;
     }
 
+    /**
+     * Writes whole db to temporary file, that replaces index afterwards,
+     * so index is never left half-written. Log is removed, as db
+     * already contains its changes.
+     */
     public void store(DB db) {
-        try (var os = new ObjectOutputStream(Files.newOutputStream(getDbFilePath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
-            os.writeObject(db);
+        withLock(() -> write(db));
+    }
+
+    private Void write(DB db) {
+        var tmp = getDbFilePath().resolveSibling(DB_FILE + ".tmp");
+        try {
+            try (var os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                DBCodec.write(db, os);
+            }
+            Files.move(tmp, getDbFilePath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(getLogFilePath());
         } catch (Exception e) {
             throw new RuntimeException("error saving " + getDbFilePath(), e);
         }
+        return null;
+    }
+
+    /**
+     * Stores db loaded when index files were at given version (see
+     * {@link #version()}), unless other process changed them since, as its
+     * changes would be lost. Returns version of written files, null when
+     * nothing was written.
+     */
+    public Object store(DB db, Object version) {
+        return withLock(() -> {
+            if (!version().equals(version))
+                return null;
+            write(db);
+            return version();
+        });
+    }
+
+    /**
+     * Appends changes to log. Damaged tail left by interrupted append is cut
+     * off first, so changes appended after it can be read.
+     */
+    public void append(Collection<DeltaLog.Change> changes) {
+        append(changes, null);
+    }
+
+    /**
+     * Appends changes to log. Returns version of index files after that, when
+     * before they were at given version, null otherwise (db loaded at given
+     * version misses changes of other process, so it should be loaded again).
+     */
+    public Object append(Collection<DeltaLog.Change> changes, Object version) {
+        var records = DeltaLog.encode(changes);
+        return withLock(() -> {
+            boolean current = version().equals(version);
+            try (var channel = FileChannel.open(getLogFilePath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = channel.size();
+                long valid = size == 0 ? 0 : DeltaLog.validLength(read(channel));
+                if (valid < size) // damaged tail of interrupted append
+                    channel.truncate(valid);
+                channel.position(valid);
+                var buffer = ByteBuffer.wrap(records);
+                if (valid == 0) { // header and records at once, so readers do not see header alone
+                    var header = DeltaLog.header();
+                    buffer = ByteBuffer.allocate(header.length + records.length).put(header).put(records).flip();
+                }
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } catch (Exception e) {
+                throw new RuntimeException("error saving " + getLogFilePath(), e);
+            }
+            return current ? version() : null;
+        });
+    }
+
+    private static ByteBuffer read(FileChannel channel) throws IOException {
+        var ret = ByteBuffer.allocate((int) channel.size());
+        while (ret.hasRemaining() && channel.read(ret, ret.position()) >= 0)
+            ;
+        return ret.flip();
+    }
+
+    /**
+     * Returns sizes and modification times of index files, which differ
+     * whenever they were changed (by any process).
+     */
+    public Object version() {
+        var ret = new ArrayList<Object>();
+        for (var path : List.of(getDbFilePath(), getLogFilePath())) {
+            try {
+                ret.add(Files.size(path));
+                ret.add(Files.getLastModifiedTime(path));
+            } catch (NoSuchFileException e) {
+                ret.add(null);
+            } catch (IOException e) {
+                throw new RuntimeException("error reading " + path, e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns true when there are changes appended to log since index was
+     * written.
+     */
+    public boolean hasLog() {
+        return Files.exists(getLogFilePath());
+    }
+
+    /**
+     * Returns true when log grew big enough to be worth folding into base.
+     */
+    public boolean needsCompaction() {
+        try {
+            if (!Files.exists(getLogFilePath()))
+                return false;
+            long logSize = Files.size(getLogFilePath());
+            return logSize >= MIN_COMPACTION_LOG_SIZE && logSize >= Files.size(getDbFilePath()) * COMPACTION_LOG_RATIO;
+        } catch (Exception e) {
+            throw new RuntimeException("error reading " + getLogFilePath(), e);
+        }
+    }
+
+    /**
+     * Folds log into base index.
+     */
+    public void compact() {
+        withLock(() -> write(load()));
+    }
+
+    /**
+     * Serializes writers of index files, including other processes.
+     */
+    private <T> T withLock(Callable<T> action) {
+        try (var channel = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             var lock = channel.lock()) {
+            return action.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("error locking " + root.resolve(LOCK_FILE), e);
+        }
     }
 
     public static StoreManager open(Path start) {
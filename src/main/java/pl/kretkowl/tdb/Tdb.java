@@ -3,20 +3,36 @@ package pl.kretkowl.tdb;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.SneakyThrows;
+import pl.kretkowl.tdb.CommandLineOptions.Command;
 import pl.kretkowl.tdb.CommandLineOptions.OutputType;
 import pl.kretkowl.tdb.model.DB;
 import pl.kretkowl.tdb.model.Document;
+import pl.kretkowl.tdb.model.DeltaLog.Change;
+import pl.kretkowl.tdb.query.QueryContext;
 import pl.kretkowl.tdb.query.QueryParser;
 
 @AllArgsConstructor
@@ -29,16 +45,27 @@ public class Tdb {
     public static void printUsage(String command) {
         String usage = 
             "Usage: " + command + " [COMMAND] ([OPTIONS]...)?\n" +
-            "  COMMAND: one of: init, rebuild, index, query\n\n" +
+            "  COMMAND: one of: init, rebuild, index, compact, root, query, serve, watch\n\n" +
             "  init - creates empty root in current directory; if -i given, indexes all files\n" +
-            "  rebuild - reindexes all .md files below nearest root\n" +
-            "  index - takes one parameter, filename to index\n" +
+            "         (-j <n> sets number of threads parsing files, by default one per processor)\n" +
+            "  rebuild - reindexes .md files below nearest root that changed since they were indexed\n" +
+            "            (-j <n> as in init)\n" +
+            "  index - takes names of files to index, or - to read them from standard input (one per line,\n" +
+            "          or separated by NUL); files that are gone are removed from index. Changes are\n" +
+            "          appended to index log at once (-j <n> as in init)\n" +
+            "  compact - folds index log into index (done automatically when log grows big)\n" +
             "  root - finds and return path to nearest root, fails if not found\n" +
             "  query - query is read from standard input unless parameter -q <query> is given, when\n" +
             "          it is in form @<filename> it will be read from that file else taken literally\n" +
             "          (be sure to use quotes). Also, option deciding on output can be given: \n" +
             "          -r is single row, every attribute in seperate <key>: <value> line,\n" +
-            "          -v is single value without key, -t markdown table, when not specified csv will be used";
+            "          -v is single value without key, -t markdown table, when not specified csv will be used\n" +
+            "          -j <n> runs scans of large sources on n threads (by default query runs on one)\n" +
+            "          -m <n> megabytes of rows sorted in memory, more are sorted in temporary files\n" +
+            "          in root (by default quarter of heap)\n" +
+            "  serve - keeps index of nearest root in memory and runs rebuild, index and query\n" +
+            "          sent by other tdb processes, until killed; when no server runs, they run by themselves\n" +
+            "  watch - reindexes .md files below nearest root as soon as they change, until killed";
         System.err.println(usage);
     }
 
@@ -57,6 +84,12 @@ public class Tdb {
             System.exit(-1);
         }
         try {
+            if (Server.SERVED.contains(clo.getCommand())) {
+                clo = readInput(clo);
+                var served = Server.forward(Paths.get("."), clo, System.out, System.err);
+                if (served.isPresent())
+                    System.exit(served.getAsInt());
+            }
             new Tdb(
                     new DocumentProcessor(new DocumentParser()),
                     new QueryParser(),
@@ -76,19 +109,22 @@ public class Tdb {
         case INIT:
             sm = StoreManager.init(Paths.get("."));
             documentProcessor.setRoot(Paths.get("."));
-            if (clo.isIndex()) sm.store(rebuild(sm));
+            if (clo.isIndex()) rebuildAndStore(sm, new DB(), clo.getParallelism());
             break;
         case REBUILD:
             sm = StoreManager.open(Paths.get("."));
             documentProcessor.setRoot(sm.getRoot());
-            sm.store(rebuild(sm));
+            rebuildAndStore(sm, loadForRebuild(sm), clo.getParallelism());
             break;
         case INDEX:
             sm = StoreManager.open(Paths.get("."));
             documentProcessor.setRoot(sm.getRoot());
-            var db = sm.load();
-            indexFile(db, sm.getRoot().relativize(Paths.get(clo.getFile()).toAbsolutePath()), sm.getRoot());
-            sm.store(db);
+            sm.append(indexFiles(readInput(clo).getFiles(), sm.getRoot(), clo.getParallelism()));
+            if (sm.needsCompaction())
+                sm.compact();
+            break;
+        case COMPACT:
+            StoreManager.open(Paths.get(".")).compact();
             break;
         case ROOT:
             try {
@@ -107,42 +143,259 @@ public class Tdb {
                 query = Files.readString(Paths.get(clo.getQuery().substring(1)));
             else
                 query = clo.getQuery();
-            prepareOutput(clo.getOutputType(), query(sm.load(), query));
+            var qc = query(sm.load(), query, clo, sm.getRoot());
+            try (var rows = qc.execute()) {
+                prepareOutput(clo.getOutputType(), qc.getColumns(), rows);
+            }
+            break;
+        case SERVE:
+            sm = StoreManager.open(Paths.get("."));
+            documentProcessor.setRoot(sm.getRoot());
+            new Server(this, sm).run();
+            break;
+        case WATCH:
+            sm = StoreManager.open(Paths.get("."));
+            documentProcessor.setRoot(sm.getRoot());
+            new Watcher(this, sm).run();
             break;
         }
     }
 
-    private void prepareOutput(OutputType outputType, Stream<Map<String, String>> result) {
-        outputFormatter.prepareOutput(outputType, result);
+    /**
+     * Reads query from standard input or file, reads list of files to index
+     * from standard input (for "-") and makes their paths absolute, so
+     * command can be run in another process.
+     */
+    @SneakyThrows
+    static CommandLineOptions readInput(CommandLineOptions clo) {
+        var ret = clo.toBuilder();
+        if (clo.getCommand() == Command.QUERY && clo.getQuery() == null)
+            ret.query(new BufferedReader(new InputStreamReader(System.in)).lines().collect(Collectors.joining("\n")));
+        else if (clo.getCommand() == Command.QUERY && clo.getQuery().startsWith("@"))
+            ret.query(Files.readString(Paths.get(clo.getQuery().substring(1))));
+        ret.clearFiles();
+        for (var file : clo.getFiles()) {
+            if (!file.equals("-")) {
+                ret.file(Paths.get(file).toAbsolutePath().toString());
+                continue;
+            }
+            var input = new String(System.in.readAllBytes());
+            for (var listed : input.split(input.indexOf('\0') >= 0 ? "\0" : "\r?\n"))
+                if (!listed.isEmpty())
+                    ret.file(Paths.get(listed).toAbsolutePath().toString());
+        }
+        return ret.build();
     }
 
-    private Stream<Map<String, String>> query(DB db, String query) {
-        return queryParser.parseQuery(db, query).execute();
+    /**
+     * Runs query, index or rebuild for server: query reads snapshot of db,
+     * index and rebuild change db along with index files. Files to index are
+     * parsed before db is changed, so other writers wait only for changes.
+     */
+    protected void runServed(CommandLineOptions clo, StoreManager sm, SharedDB db, PrintStream out, PrintStream err) {
+        switch (clo.getCommand()) {
+        case QUERY:
+            var qc = query(db.snapshot(), clo.getQuery(), clo, sm.getRoot());
+            try (var rows = qc.execute()) {
+                outputFormatter.prepareOutput(clo.getOutputType(), qc.getColumns(), rows, out);
+            }
+            break;
+        case INDEX:
+            var changes = indexFiles(clo.getFiles(), sm.getRoot(), clo.getParallelism());
+            db.update((d, version) -> append(sm, d, version, changes));
+            break;
+        case REBUILD:
+            // again when other process changed index meanwhile, so its changes are not lost
+            var report = new RebuildReport[1];
+            Object stored;
+            do {
+                stored = db.update((d, version) -> {
+                    report[0] = rebuild(d, sm.getRoot(), clo.getParallelism());
+                    return sm.store(d, version);
+                });
+            } while (stored == null);
+            err.println(report[0]);
+            break;
+        default:
+            throw new IllegalArgumentException(clo.getCommand() + " is not run by server");
+        }
+    }
+
+    private void prepareOutput(OutputType outputType, List<String> columns, Stream<Map<String, String>> result) {
+        outputFormatter.prepareOutput(outputType, columns, result);
+    }
+
+    private QueryContext query(DB db, String query, CommandLineOptions clo, Path root) {
+        var qc = queryParser.parseQuery(db, query);
+        qc.setParallelism(clo.getParallelism());
+        if (clo.getMemoryLimit() > 0)
+            qc.setMemoryLimit(clo.getMemoryLimit() * 1024l * 1024);
+        qc.setSpillDirectory(root);
+        return qc;
+    }
+
+    /**
+     * Appends changes to log and applies them to db kept in memory, loaded
+     * when index files were at given version. When log grew big, db replaces
+     * index, or log is compacted if other process changed index meanwhile.
+     * Returns version of index files db matches, null when it should be
+     * loaded again.
+     */
+    static Object append(StoreManager sm, DB db, Object version, List<Change> changes) {
+        var ret = sm.append(changes, version);
+        changes.forEach(c -> c.applyTo(db));
+        if (sm.needsCompaction()) {
+            if (ret != null)
+                ret = sm.store(db, ret);
+            if (ret == null)
+                sm.compact();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns changes of files given by absolute paths, parsed by given number
+     * of threads (as in rebuild); documents of files that are gone are removed.
+     */
+    List<Change> indexFiles(List<String> files, Path root, int parallelism) {
+        var toParse = new ArrayList<Path>();
+        var removed = new ArrayList<Change>();
+        var paths = new LinkedHashSet<Path>();
+        files.forEach(f -> paths.add(root.toAbsolutePath().normalize().relativize(Paths.get(f).normalize())));
+        for (var path : paths) {
+            if (Files.isRegularFile(root.resolve(path)))
+                toParse.add(path);
+            else if (Files.exists(root.resolve(path)))
+                throw new IllegalArgumentException(path + " is not a file");
+            else
+                removed.add(Change.remove(document(path, null)));
+        }
+        var ret = new ArrayList<>(parse(toParse, root, parallelism));
+        ret.addAll(removed);
+        return ret;
+    }
+
+    static Document document(Path path, String modification) {
+        return new Document(path.getParent() == null ? "." : path.getParent().toString(), path.getFileName().toString(), modification);
     }
 
     @SneakyThrows
-    private void indexFile(DB db, Path path, Path root) {
-        var doc = new Document(
-                path.getParent() == null ? "." : path.getParent().toString(), 
-                path.getFileName().toString(), 
-                ((FileTime)Files.getAttribute(root.resolve(path), "lastModifiedTime")).toString());
-        var entries = documentProcessor.processDocument(doc);
-        db.remove(doc);
-        db.add(doc, entries);
+    Change indexFile(Path path, Path root) {
+        var doc = document(path, ((FileTime)Files.getAttribute(root.resolve(path), "lastModifiedTime")).toString());
+        return Change.replace(doc, documentProcessor.processDocument(doc));
     }
     
-    protected DB rebuild(StoreManager sm) {
-        DB db = new DB();
-        var root = sm.getRoot();
-        try (var files = Files.find(
-                    root, 
-                    500, 
-                    (name, attrs) -> name.getFileName().toString().endsWith(".md") && attrs.isRegularFile(), 
-                    FileVisitOption.FOLLOW_LINKS)) {
-            files.forEach(p -> indexFile(db, root.relativize(p), root));
-            return db;
+    /**
+     * Index written in older format (or damaged) cannot be reused, so all files are parsed again.
+     */
+    private static DB loadForRebuild(StoreManager sm) {
+        try {
+            return sm.load();
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() + (e.getCause() == null ? "" : ": " + e.getCause().getMessage()) + ", reindexing all files");
+            return new DB();
+        }
+    }
+
+    private void rebuildAndStore(StoreManager sm, DB db, int parallelism) {
+        System.err.println(rebuild(db, sm.getRoot(), parallelism));
+        sm.store(db);
+    }
+
+    /**
+     * Returns .md files below directory, relative to root. Directories not
+     * accepted by filter are skipped with all directories below them.
+     */
+    static List<Path> markdownFiles(Path root, Path directory, Predicate<Path> directories) {
+        var ret = new ArrayList<Path>();
+        try {
+            Files.walkFileTree(directory, Set.of(FileVisitOption.FOLLOW_LINKS), 500, new SimpleFileVisitor<>() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(directory) || directories.test(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.getFileName().toString().endsWith(".md") && attrs.isRegularFile())
+                        ret.add(root.relativize(file));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
+        return ret;
+    }
+
+    @Getter
+    protected static class RebuildReport {
+        int reused;
+        int reparsed;
+        int added;
+        int removed;
+
+        @Override
+        public String toString() {
+            return String.format("documents: %d reused, %d reparsed, %d added, %d removed", reused, reparsed, added, removed);
+        }
+    }
+
+    protected RebuildReport rebuild(DB db, Path root) {
+        return rebuild(db, root, 1);
+    }
+
+    /**
+     * Brings db up to date with .md files below root: reparses only documents
+     * which modification time changed, removes those which files are gone
+     * and adds new ones. Files are parsed by given number of threads (0 - one per
+     * processor), db is updated by calling thread in order independent of it.
+     */
+    protected RebuildReport rebuild(DB db, Path root, int parallelism) {
+        return rebuild(db, root, parallelism, directory -> true);
+    }
+
+    /**
+     * Rebuilds db as above, with .md files only from directories accepted by
+     * filter; documents of other directories are removed.
+     */
+    protected RebuildReport rebuild(DB db, Path root, int parallelism, Predicate<Path> directories) {
+        Set<Path> files = new TreeSet<>(markdownFiles(root, root, directories));
+
+        var report = new RebuildReport();
+        var toParse = new ArrayList<Path>();
+        for (var d : db.findAllDocuments().collect(Collectors.toList())) {
+            var path = Paths.get(d.getPath(), d.getName()).normalize();
+            if (!files.remove(path)) {
+                db.remove(d);
+                report.removed++;
+            } else if (documentProcessor.getUpdatedDocument(d).isPresent()) {
+                toParse.add(path);
+                report.reparsed++;
+            } else
+                report.reused++;
+        }
+        report.added = files.size();
+        toParse.addAll(files);
+
+        parse(toParse, root, parallelism).forEach(c -> c.applyTo(db));
+        return report;
+    }
+
+    @SneakyThrows
+    private List<Change> parse(List<Path> paths, Path root, int parallelism) {
+        if (parallelism == 0)
+            parallelism = Runtime.getRuntime().availableProcessors();
+        if (parallelism == 1 || paths.size() < 2)
+            return paths.stream().map(p -> indexFile(p, root)).collect(Collectors.toList());
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(() -> paths.parallelStream().map(p -> indexFile(p, root)).collect(Collectors.toList())).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
     }
 }
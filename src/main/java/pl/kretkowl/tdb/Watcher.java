@@ -0,0 +1,220 @@
+package pl.kretkowl.tdb;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import lombok.SneakyThrows;
+import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.model.DeltaLog.Change;
+
+/**
+ * Keeps index of root current. All directories below root (except hidden
+ * ones) are watched; when burst of changes settles (nothing changes for
+ * {@link #QUIET_MILLIS}), changed .md files are reparsed, documents of
+ * deleted files and directories are removed, and all changes are appended to
+ * log at once. When events were lost, or changes could not be applied, whole
+ * root is rebuilt.
+ */
+public class Watcher {
+
+    static final long QUIET_MILLIS = 300;
+
+    private final Tdb tdb;
+    private final StoreManager sm;
+    private final Path root;
+    private final WatchService watchService;
+    private DB db;
+    private Object loaded;
+
+    @SneakyThrows
+    public Watcher(Tdb tdb, StoreManager sm) {
+        this.tdb = tdb;
+        this.sm = sm;
+        this.root = sm.getRoot().toAbsolutePath().normalize();
+        this.watchService = root.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Watches root until stopped (or killed). Files changed since they were
+     * indexed are reindexed first.
+     */
+    @SneakyThrows
+    public void run() {
+        try {
+            register(root);
+            rebuild("");
+            System.err.println("watching " + root);
+            while (true) {
+                var changed = nextChanges();
+                try {
+                    update(changed);
+                } catch (Exception e) {
+                    loaded = null; // db may be changed in part
+                    System.err.println("error indexing changes: " + e + ", rebuilding index");
+                    try {
+                        rebuild("");
+                    } catch (Exception e2) {
+                        loaded = null;
+                        System.err.println("error rebuilding index: " + e2);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    @SneakyThrows
+    public void stop() {
+        watchService.close();
+    }
+
+    /**
+     * Waits for changes, then collects them until there are none for quiet
+     * period. Returns changed paths relative to root, null when events were
+     * lost.
+     */
+    @SneakyThrows
+    private Set<Path> nextChanges() {
+        var changed = new TreeSet<Path>();
+        boolean overflow = false;
+        var key = watchService.take();
+        do {
+            for (var event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    overflow = true;
+                    continue;
+                }
+                var path = ((Path) key.watchable()).resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path) && !isHidden(path)) {
+                    register(path);
+                    changed.addAll(markdownFiles(path));
+                } else
+                    changed.add(root.relativize(path));
+            }
+            key.reset();
+            key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        } while (key != null);
+        return overflow ? null : changed;
+    }
+
+    private void update(Set<Path> changed) {
+        var db = db();
+        if (changed == null) {
+            rebuild("events lost, ");
+            return;
+        }
+        var changes = new ArrayList<Change>();
+        var deleted = new ArrayList<Path>();
+        for (var path : changed) {
+            var file = root.resolve(path);
+            try {
+                if (!Files.exists(file))
+                    deleted.add(path);
+                else if (isMarkdown(path) && Files.isRegularFile(file) && needsIndexing(db, path))
+                    changes.add(tdb.indexFile(path, root));
+            } catch (Exception e) { // e.g. temporary file of editor, removed meanwhile
+                if (Files.exists(file))
+                    System.err.println("error indexing " + path + ": " + e);
+                else
+                    deleted.add(path);
+            }
+        }
+        if (!deleted.isEmpty())
+            db.findAllDocuments()
+                .filter(d -> deleted.stream().anyMatch(Paths.get(d.getPath(), d.getName()).normalize()::startsWith))
+                .map(Change::remove)
+                .forEach(changes::add);
+        if (changes.isEmpty())
+            return;
+        loaded = Tdb.append(sm, db, loaded, changes);
+        if (!sm.hasLog())
+            db = null; // index was written as a whole, changes need not be kept in memory
+        System.err.println(changes.stream()
+                .map(c -> (c.isRemoval() ? "removed " : "indexed ") + Paths.get(c.getDocument().getPath(), c.getDocument().getName()).normalize())
+                .collect(Collectors.joining("\n")));
+    }
+
+    /**
+     * Rebuilds index of root, again when other process changed index files
+     * meanwhile, so its changes are not lost. Index is stored only when some
+     * document changed. Files of hidden directories are not indexed, as they
+     * are not watched.
+     */
+    private void rebuild(String message) {
+        do {
+            var report = tdb.rebuild(db(), root, 1, dir -> !isHidden(dir));
+            if (report.getReparsed() + report.getAdded() + report.getRemoved() == 0)
+                return;
+            System.err.println(message + report);
+            loaded = sm.store(db, loaded);
+            db = null; // loaded again when needed, so changes are not kept in memory
+        } while (loaded == null);
+    }
+
+    /**
+     * Returns db, loading it again when index files were changed by other
+     * process.
+     */
+    private DB db() {
+        var version = sm.version();
+        if (db == null || !version.equals(loaded)) {
+            db = sm.load();
+            loaded = version;
+        }
+        return db;
+    }
+
+    private boolean needsIndexing(DB db, Path path) {
+        return db.findDocument(Tdb.document(path, null))
+            .map(d -> tdb.documentProcessor.getUpdatedDocument(d).isPresent())
+            .orElse(true);
+    }
+
+    private static boolean isMarkdown(Path path) {
+        return path.getFileName().toString().endsWith(".md");
+    }
+
+    private static boolean isHidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * Watches directory and all directories below it.
+     */
+    private void register(Path directory) throws IOException {
+        Files.walkFileTree(directory, Set.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(directory) && isHidden(dir))
+                    return FileVisitResult.SKIP_SUBTREE;
+                dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private List<Path> markdownFiles(Path directory) {
+        return Tdb.markdownFiles(root, directory, dir -> !isHidden(dir));
+    }
+}
@@ -0,0 +1,70 @@
+package pl.kretkowl.tdb.model;
+
+import java.util.Set;
+import java.util.function.Predicate;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+/**
+ * Restricts entries to those having attribute with one of given values, with
+ * value accepted by predicate, or with numeric (long) value within range.
+ * Entries without attribute never satisfy it.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class AttributeCondition {
+
+    String attribute;
+    /**
+     * Accepted values, null when other kind of condition is used.
+     */
+    Set<String> values;
+    Predicate<String> predicate;
+    /**
+     * Inclusive bounds of range, null when other kind of condition is used.
+     */
+    Long from;
+    Long to;
+
+    public static AttributeCondition in(String attribute, Set<String> values) {
+        return new AttributeCondition(attribute, values, null, null, null);
+    }
+
+    public static AttributeCondition matching(String attribute, Predicate<String> predicate) {
+        return new AttributeCondition(attribute, null, predicate, null, null);
+    }
+
+    public static AttributeCondition between(String attribute, long from, long to) {
+        return new AttributeCondition(attribute, null, null, from, to);
+    }
+
+    /**
+     * Returns value as number compared by range condition, null if it is not
+     * one. Queries compare values as numbers the same way, so condition
+     * pushed into scan selects the same entries as filter of rows. Most
+     * values are not numbers, so they are rejected before parsing, without
+     * exception.
+     */
+    public static Long number(String value) {
+        if (value == null || value.isEmpty())
+            return null;
+        for (int i = value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0; i < value.length(); i++)
+            if (!Character.isDigit(value.charAt(i))) // as accepted by Long.parseLong
+                return null;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public boolean isRange() {
+        return from != null;
+    }
+
+    public AttributeCondition withAttribute(String attribute) {
+        return new AttributeCondition(attribute, values, predicate, from, to);
+    }
+}
@@ -0,0 +1,118 @@
+package pl.kretkowl.tdb.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable attributes of entry kept as ids of keys and values in dictionary.
+ * Pairs are ordered by key id, so lookup is a dictionary lookup followed by
+ * binary search.
+ */
+final class AttributeMap extends AbstractMap<String, String> {
+
+    private final Strings strings;
+    private final int[] keys;
+    private final int[] values;
+
+    AttributeMap(Strings strings, int[] keys, int[] values) {
+        this.strings = strings;
+        this.keys = keys;
+        this.values = values;
+        for (int i = 1; i < keys.length; i++) // insertion sort, there are only a few attributes
+            for (int j = i; j > 0 && keys[j - 1] > keys[j]; j--) {
+                int k = keys[j]; keys[j] = keys[j - 1]; keys[j - 1] = k;
+                int v = values[j]; values[j] = values[j - 1]; values[j - 1] = v;
+            }
+    }
+
+    static AttributeMap encode(StringDictionary dictionary, Map<String, String> attributes) {
+        if (attributes instanceof AttributeMap && ((AttributeMap) attributes).strings == dictionary)
+            return (AttributeMap) attributes;
+        var keys = new int[attributes.size()];
+        var values = new int[keys.length];
+        int i = 0;
+        for (var e : attributes.entrySet()) {
+            keys[i] = dictionary.intern(e.getKey());
+            values[i++] = dictionary.intern(e.getValue());
+        }
+        return new AttributeMap(dictionary, keys, values);
+    }
+
+    int keyId(int i) {
+        return keys[i];
+    }
+
+    int valueId(int i) {
+        return values[i];
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String))
+            return null;
+        int id = strings.id((String) key);
+        if (id < 0)
+            return null;
+        int i = Arrays.binarySearch(keys, id);
+        return i < 0 ? null : strings.string(values[i]);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof AttributeMap && ((AttributeMap) o).strings == strings)
+            return Arrays.equals(keys, ((AttributeMap) o).keys) && Arrays.equals(values, ((AttributeMap) o).values);
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<>() {
+                    int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < keys.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (i >= keys.length)
+                            throw new NoSuchElementException();
+                        var ret = new SimpleImmutableEntry<>(strings.string(keys[i]), strings.string(values[i]));
+                        i++;
+                        return ret;
+                    }
+                };
+            }
+        };
+    }
+}
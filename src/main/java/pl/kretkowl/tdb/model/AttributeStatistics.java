@@ -0,0 +1,28 @@
+package pl.kretkowl.tdb.model;
+
+import lombok.Value;
+
+/**
+ * Summary of values of single attribute, used to estimate how many entries
+ * condition selects. Counts of entries are exact. Number of distinct values
+ * and numeric bounds may be overestimated after changes made in memory, as
+ * values of removed or replaced entries of index file still count.
+ */
+@Value
+public class AttributeStatistics {
+
+    /**
+     * Entries having attribute.
+     */
+    int entries;
+    /**
+     * Entries without attribute.
+     */
+    int nulls;
+    int distinctValues;
+    /**
+     * Least and greatest value that parses as long, null when there is none.
+     */
+    Long min;
+    Long max;
+}
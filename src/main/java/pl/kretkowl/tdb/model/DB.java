@@ -1,34 +1,188 @@
 package pl.kretkowl.tdb.model;
 
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BinaryOperator;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-public class DB implements Serializable {
+/**
+ * Indexed entries. DB opened from index file reads its entries on demand from
+ * there (base), changes made afterwards are kept in memory and shadow
+ * documents of base they replace or remove. Attributes of entries kept in
+ * memory are encoded with dictionary, so each distinct key and value is
+ * stored once and indexes are keyed by its id.
+ *
+ * Every entry has an integer id, stable as long as db is open: base entries
+ * keep their number from index file, entries added later get consecutive
+ * numbers following them. Indexes keep sorted ids instead of entries.
+ * Numeric indexes, used by range conditions, are built for attribute when
+ * first needed and dropped on every change.
+ *
+ * Statistics of attributes (see {@link AttributeStatistics}) are read from
+ * index file and kept up to date for changes made in memory.
+ *
+ * DB is not synchronized; to change it while it is read, change its copy
+ * (see {@link #copy()}) instead.
+ */
+public class DB {
     Set<Document> documents = new HashSet<>();
     Map<String, Set<Document>> documentsByPath = new HashMap<>();
     Map<String, Set<Document>> documentsByName = new HashMap<>();
 
-    Set<Entry> entries = new HashSet<>();
-    Map<String, Map<String, Set<Entry>>> entriesByAttribute = new HashMap<>();
-    Map<Document, Set<Entry>> entriesByDocument = new HashMap<>();
+    /**
+     * Entries added in memory, by id - firstEntryId, null when removed.
+     */
+    List<Entry> entries = new ArrayList<>();
+    Map<Integer, Map<Integer, Postings>> entriesByAttribute = new HashMap<>();
+    Map<Document, Postings> entriesByDocument = new HashMap<>();
+
+    private final StringDictionary dictionary;
+    private final MappedIndex base;
+    private final int firstEntryId;
+    /**
+     * Ids of base documents that were removed or replaced in memory.
+     */
+    private final Set<Integer> shadowed = new HashSet<>();
+    private final Map<String, NumericIndex> numericIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Statistics of entries in memory, by attribute id, and of shadowed
+     * base entries, which no longer count.
+     */
+    private final Map<Integer, AttributeCounter> counters = new HashMap<>();
+    private int liveEntries;
+    private final Map<String, Integer> shadowedByAttribute = new HashMap<>();
+    private int shadowedEntries;
+
+    private static class AttributeCounter {
+        int entries;
+        Long min;
+        Long max;
+    }
+
+    public DB() {
+        this(null);
+    }
+
+    DB(MappedIndex base) {
+        this(base, new StringDictionary());
+    }
+
+    private DB(MappedIndex base, StringDictionary dictionary) {
+        this.base = base;
+        this.dictionary = dictionary;
+        this.firstEntryId = base == null ? 0 : base.entryCount();
+    }
+
+    /**
+     * Returns db with the same entries, that may be changed without
+     * affecting this one (which may be read meanwhile). Base, documents and
+     * entries are shared, only indexes of changes kept in memory are copied.
+     */
+    public DB copy() {
+        var ret = new DB(base, dictionary.copy());
+        ret.documents.addAll(documents);
+        documentsByPath.forEach((k, v) -> ret.documentsByPath.put(k, new HashSet<>(v)));
+        documentsByName.forEach((k, v) -> ret.documentsByName.put(k, new HashSet<>(v)));
+        ret.entries.addAll(entries);
+        entriesByAttribute.forEach((k, v) -> {
+            var byValue = new HashMap<Integer, Postings>(v.size() * 2);
+            v.forEach((value, postings) -> byValue.put(value, postings.copy()));
+            ret.entriesByAttribute.put(k, byValue);
+        });
+        entriesByDocument.forEach((k, v) -> ret.entriesByDocument.put(k, v.copy()));
+        ret.shadowed.addAll(shadowed);
+        counters.forEach((k, v) -> {
+            var counter = new AttributeCounter();
+            counter.entries = v.entries;
+            counter.min = v.min;
+            counter.max = v.max;
+            ret.counters.put(k, counter);
+        });
+        ret.liveEntries = liveEntries;
+        ret.shadowedByAttribute.putAll(shadowedByAttribute);
+        ret.shadowedEntries = shadowedEntries;
+        return ret;
+    }
+
+    private int baseDocumentId(Document document) {
+        if (base == null)
+            return -1;
+        int id = base.documentId(document.getPath(), document.getName());
+        return shadowed.contains(id) ? -1 : id;
+    }
+
+    private IntStream baseDocumentIds() {
+        return base == null
+            ? IntStream.empty()
+            : IntStream.range(0, base.documentCount()).filter(id -> !shadowed.contains(id));
+    }
+
+    private Stream<Entry> baseEntries(IntStream postings) {
+        if (!shadowed.isEmpty())
+            postings = postings.filter(id -> !shadowed.contains(base.documentOfEntry(id)));
+        return postings.mapToObj(id -> base.entry(id));
+    }
+
+    private Entry entry(int id) {
+        return id < firstEntryId ? base.entry(id) : entries.get(id - firstEntryId);
+    }
+
+    private Document documentOf(int id) {
+        return id < firstEntryId ? base.document(base.documentOfEntry(id)) : entries.get(id - firstEntryId).getDocument();
+    }
+
+    private boolean isLive(int id) {
+        return entries.get(id - firstEntryId) != null;
+    }
+
+    /**
+     * Attribute postings may still contain ids of removed entries (see {@link Postings#removeLater}).
+     */
+    private Stream<Entry> entries(Postings postings) {
+        return postings == null ? Stream.empty() : postings.stream().mapToObj(this::entry).filter(Objects::nonNull);
+    }
 
     public Optional<Document> findDocument(Document document) {
-        return documents.stream().filter(d -> d.equals(document)).findAny();
+        int baseId = baseDocumentId(document);
+        if (baseId >= 0)
+            return Optional.of(base.document(baseId));
+        return documentsByPath.getOrDefault(document.getPath(), Collections.emptySet()).stream()
+            .filter(d -> d.equals(document))
+            .findAny();
     }
 
     public Stream<Document> findAllDocuments() {
-        return documents.stream();
+        return Stream.concat(baseDocumentIds().mapToObj(id -> base.document(id)), documents.stream());
+    }
+
+    private void shadow(int baseId, Entry[] baseEntries) {
+        shadowed.add(baseId);
+        shadowedEntries += baseEntries.length;
+        for (var e : baseEntries)
+            for (var attribute : e.getAttributes().keySet())
+                shadowedByAttribute.merge(attribute, 1, Integer::sum);
     }
 
     public void remove(Document document) {
+        numericIndexes.clear();
+        int baseId = baseDocumentId(document);
+        if (baseId >= 0)
+            shadow(baseId, base.entries(baseId).toArray(Entry[]::new));
         if (!documents.remove(document))
             return;
         var docByPath = documentsByPath.get(document.getPath());
@@ -42,54 +196,216 @@ public class DB implements Serializable {
         var docEntries = entriesByDocument.remove(document);
         if (docEntries == null)
             return;
-        entries.removeAll(docEntries);
-        docEntries.forEach(e -> 
-            e.getAttributes().forEach((a, v) -> {
-                entriesByAttribute.get(a).get(v).remove(e);
-                if (entriesByAttribute.get(a).get(v).isEmpty())
-                    entriesByAttribute.get(a).remove(v);
-                if (entriesByAttribute.get(a).isEmpty())
-                    entriesByAttribute.remove(a);
-            }));
+        docEntries.stream().forEach(id -> {
+            var attributes = (AttributeMap) entries.set(id - firstEntryId, null).getAttributes();
+            liveEntries--;
+            for (int i = 0; i < attributes.size(); i++) {
+                counters.get(attributes.keyId(i)).entries--;
+                var byValue = entriesByAttribute.get(attributes.keyId(i));
+                if (byValue.get(attributes.valueId(i)).removeLater(this::isLive))
+                    byValue.remove(attributes.valueId(i));
+                if (byValue.isEmpty())
+                    entriesByAttribute.remove(attributes.keyId(i));
+            }
+        });
     }
 
     public void add(Document document, Collection<Entry> entries) {
+        numericIndexes.clear();
+        int baseId = baseDocumentId(document);
+        if (baseId >= 0) { // document gets more entries, move those already indexed to memory
+            var baseDocument = base.document(baseId);
+            var baseEntries = base.entries(baseId).toArray(Entry[]::new);
+            shadow(baseId, baseEntries);
+            documents.add(baseDocument);
+            documentsByPath.computeIfAbsent(baseDocument.getPath(), __ -> new HashSet<>()).add(baseDocument);
+            documentsByName.computeIfAbsent(baseDocument.getName(), __ -> new HashSet<>()).add(baseDocument);
+            for (var e : baseEntries)
+                addEntry(e.getDocument(), e);
+        }
         documents.add(document);
         documentsByPath.computeIfAbsent(document.getPath(), __ -> new HashSet<>()).add(document);
         documentsByName.computeIfAbsent(document.getName(), __ -> new HashSet<>()).add(document);
 
         entries.forEach(e -> {
             if (e.getDocument() != document) throw new IllegalArgumentException();
-            addEntry(e);
+            addEntry(document, e);
         });
     }
 
-    private void addEntry(Entry entry) {
-        entries.add(entry);
-        entriesByDocument.computeIfAbsent(entry.getDocument(), __ -> new HashSet<>()).add(entry);
-        entry.getAttributes().forEach((a,v) -> 
-            entriesByAttribute.computeIfAbsent(a, __ -> new HashMap<>()).computeIfAbsent(v, __ -> new HashSet<>()).add(entry));
+    private void addEntry(Document document, Entry entry) {
+        var attributes = AttributeMap.encode(dictionary, entry.getAttributes());
+        int id = firstEntryId + entries.size();
+        entries.add(new Entry(document, entry.getLine(), attributes));
+        entriesByDocument.computeIfAbsent(document, __ -> new Postings()).add(id);
+        liveEntries++;
+        for (int i = 0; i < attributes.size(); i++) {
+            var byValue = entriesByAttribute.computeIfAbsent(attributes.keyId(i), __ -> new HashMap<>());
+            var postings = byValue.get(attributes.valueId(i));
+            var counter = counters.computeIfAbsent(attributes.keyId(i), __ -> new AttributeCounter());
+            counter.entries++;
+            if (postings == null) { // new value, check it once
+                byValue.put(attributes.valueId(i), postings = new Postings());
+                var n = AttributeCondition.number(dictionary.string(attributes.valueId(i)));
+                if (n != null) {
+                    counter.min = counter.min == null ? n : Math.min(counter.min, n);
+                    counter.max = counter.max == null ? n : Math.max(counter.max, n);
+                }
+            }
+            postings.add(id);
+        }
+    }
+
+    /**
+     * Returns number of entries.
+     */
+    public int entryCount() {
+        return (base == null ? 0 : base.entryCount() - shadowedEntries) + liveEntries;
+    }
+
+    public int entryCount(Document document) {
+        var docEntries = entriesByDocument.get(document);
+        if (docEntries != null)
+            return docEntries.size();
+        int baseId = baseDocumentId(document);
+        return baseId < 0 ? 0 : base.entryCount(baseId);
+    }
+
+    public int entryCountByName(String name) {
+        int ret = base == null
+            ? 0
+            : base.documentIdsByName(name).filter(id -> !shadowed.contains(id)).map(base::entryCount).sum();
+        for (var d : documentsByName.getOrDefault(name, Collections.emptySet()))
+            ret += entryCount(d);
+        return ret;
+    }
+
+    public AttributeStatistics statistics(String attribute) {
+        var baseStatistics = base == null
+            ? new AttributeStatistics(0, 0, 0, null, null)
+            : base.statistics(attribute);
+        int key = dictionary.id(attribute);
+        var counter = counters.getOrDefault(key, new AttributeCounter());
+        int entries = baseStatistics.getEntries() - shadowedByAttribute.getOrDefault(attribute, 0) + counter.entries;
+        int distinctValues = baseStatistics.getDistinctValues();
+        for (var value : entriesByAttribute.getOrDefault(key, Collections.emptyMap()).keySet())
+            if (base == null || !base.hasValue(attribute, dictionary.string(value)))
+                distinctValues++;
+        distinctValues = Math.min(distinctValues, entries);
+        return new AttributeStatistics(entries, entryCount() - entries, distinctValues,
+                bound(baseStatistics.getMin(), counter.min, Math::min),
+                bound(baseStatistics.getMax(), counter.max, Math::max));
+    }
+
+    private static Long bound(Long a, Long b, BinaryOperator<Long> choice) {
+        return a == null ? b : b == null ? a : choice.apply(a, b);
     }
 
     public Stream<Entry> findByDocument(Document d) {
-        return entriesByDocument.getOrDefault(d, Collections.emptySet()).stream();
+        var docEntries = entriesByDocument.get(d);
+        if (docEntries != null)
+            return entries(docEntries);
+        int baseId = baseDocumentId(d);
+        return baseId < 0 ? Stream.empty() : base.entries(baseId);
     }
 
     public Stream<Entry> findByDocumentName(String name) {
-        return documentsByName.getOrDefault(name, Collections.emptySet()).stream().flatMap(this::findByDocument);
+        var baseDocuments = base == null
+            ? IntStream.empty()
+            : base.documentIdsByName(name).filter(id -> !shadowed.contains(id));
+        return Stream.concat(
+                baseDocuments.mapToObj(id -> base.entries(id)).flatMap(s -> s),
+                documentsByName.getOrDefault(name, Collections.emptySet()).stream().flatMap(this::findByDocument));
     }
 
     public Stream<Entry> findByAttribute(String attribute, String value) {
-        return entriesByAttribute.getOrDefault(attribute, Collections.emptyMap()).getOrDefault(value, Collections.emptySet()).stream();
+        return Stream.concat(
+                base == null ? Stream.empty() : baseEntries(base.postings(attribute, value)),
+                entries(entriesByAttribute.getOrDefault(dictionary.id(attribute), Collections.emptyMap()).get(dictionary.id(value))));
     }
 
     public Stream<Entry> findByAttribute(String attribute, Pattern value) {
-        return entriesByAttribute.getOrDefault(attribute, Collections.emptyMap()).entrySet().stream()
-            .filter(e -> value.matcher(e.getKey()).matches())
-            .flatMap(e -> e.getValue().stream());
+        return Stream.concat(
+                base == null ? Stream.empty() : baseEntries(base.postings(attribute, v -> value.matcher(v).matches())),
+                entriesByAttribute.getOrDefault(dictionary.id(attribute), Collections.emptyMap()).entrySet().stream()
+                    .filter(e -> value.matcher(dictionary.string(e.getKey())).matches())
+                    .flatMap(e -> entries(e.getValue())));
+    }
+
+    /**
+     * Finds entries satisfying all conditions. Ids of entries satisfying each
+     * condition are taken from attribute index and intersected, so only entries
+     * in result are read. Document filter (may be null) is also checked
+     * before entry is read.
+     */
+    public Stream<Entry> findByAttributes(Collection<AttributeCondition> conditions, Predicate<Document> documentFilter) {
+        var ids = conditions.stream()
+            .map(this::ids)
+            .sorted(Comparator.comparingInt(a -> a.length))
+            .reduce(DB::intersect)
+            .orElseThrow(() -> new IllegalArgumentException("no conditions"));
+        var ret = Arrays.stream(ids);
+        if (documentFilter != null)
+            ret = ret.filter(id -> documentFilter.test(documentOf(id)));
+        return ret.mapToObj(this::entry);
+    }
+
+    /**
+     * Returns ascending ids of live entries satisfying condition.
+     */
+    private int[] ids(AttributeCondition condition) {
+        var attribute = condition.getAttribute();
+        if (condition.isRange())
+            return numericIndexes.computeIfAbsent(attribute, this::buildNumericIndex).range(condition.getFrom(), condition.getTo());
+        var baseIds = base == null
+            ? IntStream.empty()
+            : condition.getValues() != null
+                ? condition.getValues().stream().flatMapToInt(v -> base.postings(attribute, v))
+                : base.postings(attribute, condition.getPredicate());
+        if (!shadowed.isEmpty())
+            baseIds = baseIds.filter(id -> !shadowed.contains(base.documentOfEntry(id)));
+
+        var byValue = entriesByAttribute.getOrDefault(dictionary.id(attribute), Collections.emptyMap());
+        var postings = condition.getValues() != null
+            ? condition.getValues().stream().map(v -> byValue.get(dictionary.id(v))).filter(Objects::nonNull)
+            : byValue.entrySet().stream()
+                .filter(e -> condition.getPredicate().test(dictionary.string(e.getKey())))
+                .map(Map.Entry::getValue);
+        var ret = IntStream.concat(baseIds, postings.flatMapToInt(Postings::stream).filter(this::isLive)).toArray();
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private NumericIndex buildNumericIndex(String attribute) {
+        var builder = new NumericIndex.Builder();
+        if (base != null)
+            base.forEachValue(attribute, (value, ids) ->
+                builder.add(value, shadowed.isEmpty() ? ids : ids.filter(id -> !shadowed.contains(base.documentOfEntry(id)))));
+        entriesByAttribute.getOrDefault(dictionary.id(attribute), Collections.emptyMap())
+            .forEach((value, postings) -> builder.add(dictionary.string(value), postings.stream().filter(this::isLive)));
+        return builder.build();
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        var ret = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                ret[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(ret, size);
     }
 
     public Stream<Entry> findAll() {
-        return entries.stream();
+        return Stream.concat(
+                baseDocumentIds().mapToObj(id -> base.entries(id)).flatMap(s -> s),
+                entries.stream().filter(Objects::nonNull));
     }
 }
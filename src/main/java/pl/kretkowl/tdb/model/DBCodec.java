@@ -0,0 +1,207 @@
+package pl.kretkowl.tdb.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Binary format of index file.
+ *
+ * File starts with magic 'T' 'D' 'B', version byte and table of contents:
+ * section count followed by (offset, length) of each section, in order given by
+ * section constants below. Tables are arrays of 4-byte big-endian ints, so they
+ * can be looked up in place; entries and postings are unsigned LEB128 varints.
+ * <pre>
+ * STRING_OFFSETS: start of each string in STRINGS (+ end of last one)
+ * STRINGS:        UTF-8 bytes of all strings
+ * STRING_HASH:    open addressing hash table of string ids + 1 (0 - empty slot)
+ * DOCUMENTS:      (path, name, modification + 1, first entry id, entry count)*
+ * DOCUMENT_NAMES: (name, document id)* ordered by name id
+ * ENTRY_OFFSETS:  start of each entry in ENTRIES (+ end of last one)
+ * ENTRIES:        (document id, line, attribute count, (key, value)*)*
+ * ATTRIBUTES:     (key, first value, value count)* ordered by key id
+ * VALUES:         (value, offset in POSTINGS)* ordered by value id within key
+ * POSTINGS:       (posting count, entry id delta*)*
+ * ATTRIBUTE_STATISTICS: (entry count, numeric value count, min, max)* in order of ATTRIBUTES,
+ *                 min and max as two ints (high, low), 0 when there are no numeric values
+ * </pre>
+ * Strings are referenced by id (position in dictionary). Entries are numbered
+ * consecutively in order of documents, postings list those numbers in ascending
+ * order, each one as a difference from previous. Opening index reads only
+ * table of contents, everything else is decoded when query asks for it
+ * (see {@link MappedIndex}).
+ */
+@UtilityClass
+public class DBCodec {
+
+    static final byte[] MAGIC = { 'T', 'D', 'B' };
+    static final int VERSION = 3;
+
+    static final int STRING_OFFSETS = 0;
+    static final int STRINGS = 1;
+    static final int STRING_HASH = 2;
+    static final int DOCUMENTS = 3;
+    static final int DOCUMENT_NAMES = 4;
+    static final int ENTRY_OFFSETS = 5;
+    static final int ENTRIES = 6;
+    static final int ATTRIBUTES = 7;
+    static final int VALUES = 8;
+    static final int POSTINGS = 9;
+    static final int ATTRIBUTE_STATISTICS = 10;
+    static final int SECTION_COUNT = 11;
+
+    static final int DOCUMENT_SIZE = 5;
+    static final int DOCUMENT_NAME_SIZE = 2;
+    static final int ATTRIBUTE_SIZE = 3;
+    static final int VALUE_SIZE = 2;
+    static final int ATTRIBUTE_STATISTICS_SIZE = 6;
+
+    static final int HEADER_SIZE = MAGIC.length + 1 + 4 + SECTION_COUNT * 8;
+
+    public static void write(DB db, OutputStream os) throws IOException {
+        var sections = new Section[SECTION_COUNT];
+        for (int i = 0; i < SECTION_COUNT; i++)
+            sections[i] = new Section();
+        var strings = new StringDictionary();
+        var postings = new TreeMap<Integer, TreeMap<Integer, List<Integer>>>();
+
+        var documents = db.findAllDocuments()
+            .sorted(Comparator.comparing(Document::getPath).thenComparing(Document::getName))
+            .collect(Collectors.toList());
+        var documentNames = new ArrayList<long[]>();
+        int entryId = 0;
+        for (int i = 0; i < documents.size(); i++) {
+            var d = documents.get(i);
+            var docEntries = db.findByDocument(d)
+                .sorted(Comparator.comparingInt(Entry::getLine))
+                .collect(Collectors.toList());
+            int nameId = strings.intern(d.getName());
+            sections[DOCUMENTS]
+                .int32(strings.intern(d.getPath()))
+                .int32(nameId)
+                .int32(d.getModification() == null ? 0 : strings.intern(d.getModification()) + 1)
+                .int32(entryId)
+                .int32(docEntries.size());
+            documentNames.add(new long[] { nameId, i });
+            for (var e : docEntries) {
+                sections[ENTRY_OFFSETS].int32(sections[ENTRIES].size());
+                var attributes = new TreeMap<>(e.getAttributes());
+                sections[ENTRIES].varInt(i).varInt(e.getLine()).varInt(attributes.size());
+                int id = entryId++;
+                attributes.forEach((k, v) -> {
+                    int key = strings.intern(k), value = strings.intern(v);
+                    sections[ENTRIES].varInt(key).varInt(value);
+                    postings.computeIfAbsent(key, __ -> new TreeMap<>()).computeIfAbsent(value, __ -> new ArrayList<>()).add(id);
+                });
+            }
+        }
+        sections[ENTRY_OFFSETS].int32(sections[ENTRIES].size());
+
+        documentNames.sort(Comparator.<long[]>comparingLong(p -> p[0]).thenComparingLong(p -> p[1]));
+        documentNames.forEach(p -> sections[DOCUMENT_NAMES].int32((int) p[0]).int32((int) p[1]));
+
+        int valueIndex = 0;
+        for (var a : postings.entrySet()) {
+            sections[ATTRIBUTES].int32(a.getKey()).int32(valueIndex).int32(a.getValue().size());
+            valueIndex += a.getValue().size();
+            int entries = 0, numericValues = 0;
+            long min = 0, max = 0;
+            for (var v : a.getValue().entrySet()) {
+                entries += v.getValue().size();
+                var n = AttributeCondition.number(strings.string(v.getKey()));
+                if (n != null) {
+                    min = numericValues == 0 ? n : Math.min(min, n);
+                    max = numericValues == 0 ? n : Math.max(max, n);
+                    numericValues++;
+                }
+                sections[VALUES].int32(v.getKey()).int32(sections[POSTINGS].size());
+                sections[POSTINGS].varInt(v.getValue().size());
+                int previous = 0;
+                for (int id : v.getValue()) {
+                    sections[POSTINGS].varInt(id - previous);
+                    previous = id;
+                }
+            }
+            sections[ATTRIBUTE_STATISTICS].int32(entries).int32(numericValues)
+                .int32((int) (min >>> 32)).int32((int) min)
+                .int32((int) (max >>> 32)).int32((int) max);
+        }
+
+        var hashTable = new int[hashCapacity(strings.size())];
+        for (int i = 0; i < strings.size(); i++) {
+            var b = strings.string(i).getBytes(StandardCharsets.UTF_8);
+            sections[STRING_OFFSETS].int32(sections[STRINGS].size());
+            sections[STRINGS].write(b, 0, b.length);
+            int slot = hash(strings.string(i)) & (hashTable.length - 1);
+            while (hashTable[slot] != 0)
+                slot = (slot + 1) & (hashTable.length - 1);
+            hashTable[slot] = i + 1;
+        }
+        sections[STRING_OFFSETS].int32(sections[STRINGS].size());
+        for (int slot : hashTable)
+            sections[STRING_HASH].int32(slot);
+
+        var header = new Section();
+        header.write(MAGIC, 0, MAGIC.length);
+        header.write(VERSION);
+        header.int32(SECTION_COUNT);
+        int offset = HEADER_SIZE;
+        for (var s : sections) {
+            header.int32(offset).int32(s.size());
+            offset += s.size();
+        }
+        header.writeTo(os);
+        for (var s : sections)
+            s.writeTo(os);
+        os.flush();
+    }
+
+    /**
+     * Opens index stored in buffer. Only table of contents is read,
+     * buffer must stay unchanged as long as returned db is used.
+     */
+    public static DB read(ByteBuffer buffer) throws IOException {
+        return new DB(new MappedIndex(buffer));
+    }
+
+    static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static int hashCapacity(int size) {
+        int capacity = 1;
+        while (capacity < size * 2)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static class Section extends ByteArrayOutputStream {
+
+        Section int32(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+            return this;
+        }
+
+        Section varInt(int v) {
+            while ((v & ~0x7f) != 0) {
+                write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+            return this;
+        }
+    }
+}
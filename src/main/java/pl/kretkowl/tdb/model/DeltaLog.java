@@ -0,0 +1,240 @@
+package pl.kretkowl.tdb.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+import lombok.experimental.UtilityClass;
+
+/**
+ * Format of changes appended to index after it was written.
+ *
+ * Log starts with magic 'T' 'D' 'L' and version byte, followed by records:
+ * <pre>
+ * record:  payload length, payload, CRC32 of payload (4 bytes)
+ * payload: type (1 - replace, 2 - remove), path, name, modification,
+ *          [entry count, (line, attribute count, (key, value)*)*]
+ * </pre>
+ * Integers are unsigned LEB128 varints, strings are byte length + 1 (0 for
+ * null) followed by UTF-8 bytes. Reading stops at first incomplete or damaged
+ * record; writer cuts such tail off before appending (see
+ * {@link #validLength(ByteBuffer)}), so interrupted append loses only itself.
+ */
+@UtilityClass
+public class DeltaLog {
+
+    static final byte[] MAGIC = { 'T', 'D', 'L' };
+    static final int VERSION = 1;
+
+    private static final int REPLACE = 1;
+    private static final int REMOVE = 2;
+
+    /**
+     * Single document change. Entries are null for removal.
+     */
+    @Value
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class Change {
+        Document document;
+        List<Entry> entries;
+
+        public static Change replace(Document document, Collection<Entry> entries) {
+            return new Change(document, List.copyOf(entries));
+        }
+
+        public static Change remove(Document document) {
+            return new Change(document, null);
+        }
+
+        public boolean isRemoval() {
+            return entries == null;
+        }
+
+        public void applyTo(DB db) {
+            db.remove(document);
+            if (!isRemoval())
+                db.add(document, entries);
+        }
+    }
+
+    public static byte[] header() {
+        var out = new Output();
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        return out.toByteArray();
+    }
+
+    public static byte[] encode(Collection<Change> changes) {
+        var out = new Output();
+        var payload = new Output();
+        var crc = new CRC32();
+        for (var c : changes) {
+            payload.reset();
+            payload.write(c.isRemoval() ? REMOVE : REPLACE);
+            payload.string(c.getDocument().getPath()).string(c.getDocument().getName()).string(c.getDocument().getModification());
+            if (!c.isRemoval()) {
+                payload.varInt(c.getEntries().size());
+                for (var e : c.getEntries()) {
+                    payload.varInt(e.getLine()).varInt(e.getAttributes().size());
+                    e.getAttributes().forEach((k, v) -> payload.string(k).string(v));
+                }
+            }
+            crc.reset();
+            crc.update(payload.buffer(), 0, payload.size());
+            out.varInt(payload.size());
+            out.write(payload.buffer(), 0, payload.size());
+            out.int32((int) crc.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes changes of log. Empty log (just created by writer) has no
+     * changes.
+     */
+    public static List<Change> decode(ByteBuffer buffer) throws IOException {
+        var payloads = new ArrayList<ByteBuffer>();
+        scan(buffer, payloads);
+        var ret = new ArrayList<Change>(payloads.size());
+        for (var payload : payloads)
+            ret.add(decodeChange(payload));
+        return ret;
+    }
+
+    /**
+     * Returns length of log up to end of its last complete record, so damaged
+     * tail left by interrupted append can be cut off before next append
+     * (records appended after it would never be read).
+     */
+    public static int validLength(ByteBuffer buffer) throws IOException {
+        return scan(buffer, new ArrayList<>());
+    }
+
+    /**
+     * Collects payloads of complete records, returns length of header and
+     * those records.
+     */
+    private static int scan(ByteBuffer buffer, List<ByteBuffer> payloads) throws IOException {
+        int start = buffer.position();
+        if (!buffer.hasRemaining())
+            return 0;
+        if (buffer.remaining() < MAGIC.length + 1) {
+            // part of header written by interrupted first append
+            for (int i = 0; i < Math.min(buffer.remaining(), MAGIC.length); i++)
+                if (buffer.get(start + i) != MAGIC[i])
+                    throw new IOException("not a tdb log file");
+            return 0;
+        }
+        for (byte b : MAGIC)
+            if (buffer.get() != b)
+                throw new IOException("not a tdb log file");
+        int version = buffer.get();
+        if (version != VERSION)
+            throw new IOException("unsupported log version " + version + ", rebuild index");
+
+        int end = buffer.position();
+        var crc = new CRC32();
+        try {
+            while (buffer.hasRemaining()) {
+                int length = readVarInt(buffer);
+                if (length < 0 || buffer.remaining() < length + 4)
+                    break;
+                var payload = buffer.slice();
+                payload.limit(length);
+                buffer.position(buffer.position() + length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != buffer.getInt())
+                    break;
+                payloads.add(payload);
+                end = buffer.position();
+            }
+        } catch (BufferUnderflowException | IOException e) {
+            // incomplete or damaged record at the end
+        }
+        return end - start;
+    }
+
+    private static Change decodeChange(ByteBuffer payload) throws IOException {
+        int type = payload.get();
+        var document = new Document(readString(payload), readString(payload), readString(payload));
+        if (type == REMOVE)
+            return Change.remove(document);
+        if (type != REPLACE)
+            throw new IOException("corrupted log file");
+        int count = readVarInt(payload);
+        var entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            int line = readVarInt(payload);
+            int attributeCount = readVarInt(payload);
+            var attributes = new HashMap<String, String>(attributeCount * 4 / 3 + 1);
+            for (int j = 0; j < attributeCount; j++)
+                attributes.put(readString(payload), readString(payload));
+            entries.add(new Entry(document, line, attributes));
+        }
+        return new Change(document, entries);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) throws IOException {
+        int ret = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            ret |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return ret;
+        }
+        throw new IOException("corrupted log file");
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = readVarInt(buffer) - 1;
+        if (length < 0)
+            return null;
+        var b = new byte[length];
+        buffer.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        Output int32(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+            return this;
+        }
+
+        Output varInt(int v) {
+            while ((v & ~0x7f) != 0) {
+                write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+            return this;
+        }
+
+        Output string(String s) {
+            if (s == null)
+                return varInt(0);
+            var b = s.getBytes(StandardCharsets.UTF_8);
+            varInt(b.length + 1);
+            write(b, 0, b.length);
+            return this;
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package pl.kretkowl.tdb.model;
 
-import java.io.Serializable;
 import java.nio.file.Paths;
 
 import lombok.AllArgsConstructor;
@@ -13,7 +12,7 @@ import lombok.Value;
 @AllArgsConstructor
 @Value
 @EqualsAndHashCode(of = {"path", "name"})
-public class Document implements Serializable {
+public class Document {
 
     String path;
     String name;
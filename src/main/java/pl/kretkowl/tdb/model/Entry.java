@@ -1,6 +1,5 @@
 package pl.kretkowl.tdb.model;
 
-import java.io.Serializable;
 import java.util.Map;
 
 import lombok.Value;
@@ -9,7 +8,7 @@ import lombok.Value;
  * Single data entry from document.
  */
 @Value
-public class Entry implements Serializable {
+public class Entry {
 
     Document document;
     
@@ -0,0 +1,291 @@
+package pl.kretkowl.tdb.model;
+
+import static pl.kretkowl.tdb.model.DBCodec.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Read-only view of index file written by {@link DBCodec}. Nothing is
+ * decoded upfront, lookups binary search tables in place and decode only
+ * entries and postings they return.
+ */
+class MappedIndex implements Strings {
+
+    private final ByteBuffer buffer;
+    private final int[] offsets = new int[SECTION_COUNT];
+    private final int[] lengths = new int[SECTION_COUNT];
+    private final Map<Integer, Document> documents = new ConcurrentHashMap<>();
+    private final Map<Integer, String> strings = new ConcurrentHashMap<>();
+    private final Map<String, Integer> stringIds = new ConcurrentHashMap<>();
+
+    MappedIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE)
+            throw new IOException("not a tdb index file");
+        for (int i = 0; i < MAGIC.length; i++)
+            if (buffer.get(i) != MAGIC[i])
+                throw new IOException("not a tdb index file");
+        int version = buffer.get(MAGIC.length);
+        if (version != VERSION)
+            throw new IOException("unsupported index version " + version + ", rebuild index");
+        if (buffer.getInt(MAGIC.length + 1) != SECTION_COUNT)
+            throw new IOException("corrupted index file");
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            offsets[i] = buffer.getInt(MAGIC.length + 5 + i * 8);
+            lengths[i] = buffer.getInt(MAGIC.length + 9 + i * 8);
+            if (offsets[i] < HEADER_SIZE || lengths[i] < 0 || (long) offsets[i] + lengths[i] > buffer.limit())
+                throw new IOException("corrupted index file");
+        }
+    }
+
+    private int table(int section, int index) {
+        return buffer.getInt(offsets[section] + index * 4);
+    }
+
+    private int tableSize(int section, int recordSize) {
+        return lengths[section] / 4 / recordSize;
+    }
+
+    /**
+     * Returns index of first record which key (first int of record) is not less than given key.
+     */
+    private int lowerBound(int section, int recordSize, int from, int to, int key) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (table(section, mid * recordSize) < key)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    private byte[] bytes(int position, int length) {
+        var ret = new byte[length];
+        buffer.duplicate().position(position).get(ret);
+        return ret;
+    }
+
+    /**
+     * Decodes string, each one once.
+     */
+    @Override
+    public String string(int id) {
+        return strings.computeIfAbsent(id, __ -> {
+            int start = table(STRING_OFFSETS, id);
+            return new String(bytes(offsets[STRINGS] + start, table(STRING_OFFSETS, id + 1) - start), StandardCharsets.UTF_8);
+        });
+    }
+
+    @Override
+    public int id(String s) {
+        return stringIds.computeIfAbsent(s, this::findStringId);
+    }
+
+    private int findStringId(String s) {
+        int capacity = tableSize(STRING_HASH, 1);
+        if (capacity == 0)
+            return -1;
+        var b = s.getBytes(StandardCharsets.UTF_8);
+        int slot = hash(s) & (capacity - 1);
+        int id;
+        while ((id = table(STRING_HASH, slot) - 1) >= 0) {
+            int start = table(STRING_OFFSETS, id);
+            if (table(STRING_OFFSETS, id + 1) - start == b.length
+                    && Arrays.equals(bytes(offsets[STRINGS] + start, b.length), b))
+                return id;
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    int documentCount() {
+        return tableSize(DOCUMENTS, DOCUMENT_SIZE);
+    }
+
+    Document document(int id) {
+        return documents.computeIfAbsent(id, __ -> {
+            int modification = table(DOCUMENTS, id * DOCUMENT_SIZE + 2);
+            return new Document(
+                    string(table(DOCUMENTS, id * DOCUMENT_SIZE)),
+                    string(table(DOCUMENTS, id * DOCUMENT_SIZE + 1)),
+                    modification == 0 ? null : string(modification - 1));
+        });
+    }
+
+    IntStream documentIdsByName(String name) {
+        int nameId = id(name);
+        if (nameId < 0)
+            return IntStream.empty();
+        int size = tableSize(DOCUMENT_NAMES, DOCUMENT_NAME_SIZE);
+        int from = lowerBound(DOCUMENT_NAMES, DOCUMENT_NAME_SIZE, 0, size, nameId);
+        int to = lowerBound(DOCUMENT_NAMES, DOCUMENT_NAME_SIZE, from, size, nameId + 1);
+        return IntStream.range(from, to).map(i -> table(DOCUMENT_NAMES, i * DOCUMENT_NAME_SIZE + 1));
+    }
+
+    /**
+     * Returns id of document or -1 if it is not indexed.
+     */
+    int documentId(String path, String name) {
+        int pathId = id(path);
+        if (pathId < 0)
+            return -1;
+        return documentIdsByName(name)
+            .filter(id -> table(DOCUMENTS, id * DOCUMENT_SIZE) == pathId)
+            .findAny()
+            .orElse(-1);
+    }
+
+    int entryCount() {
+        return Math.max(0, tableSize(ENTRY_OFFSETS, 1) - 1);
+    }
+
+    int entryCount(int documentId) {
+        return table(DOCUMENTS, documentId * DOCUMENT_SIZE + 4);
+    }
+
+    IntStream entryIds(int documentId) {
+        int first = table(DOCUMENTS, documentId * DOCUMENT_SIZE + 3);
+        return IntStream.range(first, first + table(DOCUMENTS, documentId * DOCUMENT_SIZE + 4));
+    }
+
+    int documentOfEntry(int id) {
+        return new Reader(offsets[ENTRIES] + table(ENTRY_OFFSETS, id)).varInt();
+    }
+
+    Entry entry(int id) {
+        var r = new Reader(offsets[ENTRIES] + table(ENTRY_OFFSETS, id));
+        var document = document(r.varInt());
+        int line = r.varInt();
+        var keys = new int[r.varInt()];
+        var values = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = r.varInt();
+            values[i] = r.varInt();
+        }
+        return new Entry(document, line, new AttributeMap(this, keys, values));
+    }
+
+    IntStream postings(String attribute, String value) {
+        int i = valueIndex(attribute, value);
+        return i < 0 ? IntStream.empty() : postings(i);
+    }
+
+    /**
+     * Returns true when some entry has attribute with given value.
+     */
+    boolean hasValue(String attribute, String value) {
+        return valueIndex(attribute, value) >= 0;
+    }
+
+    /**
+     * Returns position of value of attribute in VALUES, -1 if no entry has it.
+     */
+    private int valueIndex(String attribute, String value) {
+        int key = id(attribute);
+        int valueId = id(value);
+        int i = key < 0 || valueId < 0 ? -1 : attributeIndex(key);
+        if (i < 0)
+            return -1;
+        int first = table(ATTRIBUTES, i * ATTRIBUTE_SIZE + 1);
+        int to = first + table(ATTRIBUTES, i * ATTRIBUTE_SIZE + 2);
+        int ret = lowerBound(VALUES, VALUE_SIZE, first, to, valueId);
+        return ret == to || table(VALUES, ret * VALUE_SIZE) != valueId ? -1 : ret;
+    }
+
+    IntStream postings(String attribute, Predicate<String> valuePredicate) {
+        int key = id(attribute);
+        if (key < 0)
+            return IntStream.empty();
+        return values(key)
+            .filter(i -> valuePredicate.test(string(table(VALUES, i * VALUE_SIZE))))
+            .flatMap(this::postings);
+    }
+
+    /**
+     * Passes every value of attribute along with its postings to consumer.
+     */
+    void forEachValue(String attribute, BiConsumer<String, IntStream> consumer) {
+        int key = id(attribute);
+        if (key >= 0)
+            values(key).forEach(i -> consumer.accept(string(table(VALUES, i * VALUE_SIZE)), postings(i)));
+    }
+
+    /**
+     * Returns statistics of attribute stored with index, computed when it was written.
+     */
+    AttributeStatistics statistics(String attribute) {
+        int key = id(attribute);
+        int i = key < 0 ? -1 : attributeIndex(key);
+        if (i < 0)
+            return new AttributeStatistics(0, entryCount(), 0, null, null);
+        int entries = table(ATTRIBUTE_STATISTICS, i * ATTRIBUTE_STATISTICS_SIZE);
+        boolean numeric = table(ATTRIBUTE_STATISTICS, i * ATTRIBUTE_STATISTICS_SIZE + 1) > 0;
+        return new AttributeStatistics(entries, entryCount() - entries, table(ATTRIBUTES, i * ATTRIBUTE_SIZE + 2),
+                numeric ? statisticsLong(i, 2) : null,
+                numeric ? statisticsLong(i, 4) : null);
+    }
+
+    private long statisticsLong(int attributeIndex, int field) {
+        int record = attributeIndex * ATTRIBUTE_STATISTICS_SIZE + field;
+        return ((long) table(ATTRIBUTE_STATISTICS, record) << 32) | (table(ATTRIBUTE_STATISTICS, record + 1) & 0xffffffffL);
+    }
+
+    /**
+     * Returns position of attribute in ATTRIBUTES, -1 if no entry has it.
+     */
+    private int attributeIndex(int key) {
+        int size = tableSize(ATTRIBUTES, ATTRIBUTE_SIZE);
+        int i = lowerBound(ATTRIBUTES, ATTRIBUTE_SIZE, 0, size, key);
+        return i == size || table(ATTRIBUTES, i * ATTRIBUTE_SIZE) != key ? -1 : i;
+    }
+
+    private IntStream values(int key) {
+        int i = attributeIndex(key);
+        if (i < 0)
+            return IntStream.empty();
+        int first = table(ATTRIBUTES, i * ATTRIBUTE_SIZE + 1);
+        return IntStream.range(first, first + table(ATTRIBUTES, i * ATTRIBUTE_SIZE + 2));
+    }
+
+    private IntStream postings(int valueIndex) {
+        var r = new Reader(offsets[POSTINGS] + table(VALUES, valueIndex * VALUE_SIZE + 1));
+        var ids = new int[r.varInt()];
+        int id = 0;
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = id += r.varInt();
+        return Arrays.stream(ids);
+    }
+
+    Stream<Entry> entries(int documentId) {
+        return entryIds(documentId).mapToObj(this::entry);
+    }
+
+    private class Reader {
+        int position;
+
+        Reader(int position) {
+            this.position = position;
+        }
+
+        int varInt() {
+            int ret = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buffer.get(position++);
+                ret |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    return ret;
+            }
+            throw new IllegalStateException("corrupted index file");
+        }
+    }
+}
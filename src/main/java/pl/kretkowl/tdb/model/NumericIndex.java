@@ -0,0 +1,77 @@
+package pl.kretkowl.tdb.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Entries of single attribute ordered by its value, for values that are
+ * numbers (see {@link AttributeCondition#number(String)}). Values are kept
+ * sorted and distinct, each with ascending ids of its entries, so range
+ * lookup is binary search followed by copy.
+ */
+final class NumericIndex {
+
+    private final long[] values;
+    /**
+     * Start of entries of each value in ids (+ end of last one).
+     */
+    private final int[] offsets;
+    private final int[] ids;
+
+    private NumericIndex(long[] values, int[] offsets, int[] ids) {
+        this.values = values;
+        this.offsets = offsets;
+        this.ids = ids;
+    }
+
+    /**
+     * Collects ids of entries by value, strings which do not parse as long are skipped.
+     */
+    static class Builder {
+        private final Map<Long, IntStream.Builder> entries = new TreeMap<>();
+
+        void add(String value, IntStream ids) {
+            var v = AttributeCondition.number(value);
+            if (v == null)
+                return;
+            var b = entries.computeIfAbsent(v, __ -> IntStream.builder());
+            ids.forEach(b);
+        }
+
+        NumericIndex build() {
+            var values = new long[entries.size()];
+            var offsets = new int[entries.size() + 1];
+            var ids = IntStream.builder();
+            int i = 0;
+            for (var e : entries.entrySet()) {
+                var valueIds = e.getValue().build().sorted().toArray();
+                values[i] = e.getKey();
+                offsets[i + 1] = offsets[i] + valueIds.length;
+                Arrays.stream(valueIds).forEach(ids);
+                i++;
+            }
+            return new NumericIndex(values, offsets, ids.build().toArray());
+        }
+    }
+
+    /**
+     * Returns ascending ids of entries with value in inclusive range.
+     */
+    int[] range(long from, long to) {
+        if (from > to)
+            return new int[0];
+        int start = lowerBound(from);
+        int end = to == Long.MAX_VALUE ? values.length : lowerBound(to + 1);
+        var ret = Arrays.copyOfRange(ids, offsets[start], offsets[end]);
+        if (end - start > 1)
+            Arrays.sort(ret);
+        return ret;
+    }
+
+    private int lowerBound(long value) {
+        int i = Arrays.binarySearch(values, value);
+        return i < 0 ? -i - 1 : i;
+    }
+}
@@ -0,0 +1,67 @@
+package pl.kretkowl.tdb.model;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Ascending set of entry ids. New entries get ids greater than any existing
+ * one, so adding is usually appending.
+ */
+final class Postings {
+
+    private int[] ids = new int[2];
+    private int size;
+    private int removed;
+
+    void add(int id) {
+        int i = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+        if (i >= 0 && i < size)
+            return;
+        if (i < 0)
+            i = -i - 1;
+        if (size == ids.length)
+            ids = Arrays.copyOf(ids, size * 2);
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        ids[i] = id;
+        size++;
+    }
+
+    /**
+     * Notes that entry of one of ids was removed, without looking for it.
+     * Ids of removed entries are dropped together once they make half of the
+     * set, so removing is amortized constant time, but until then set may
+     * contain them. Returns true when no ids are left.
+     */
+    boolean removeLater(IntPredicate live) {
+        if (++removed * 2 < size)
+            return false;
+        int j = 0;
+        for (int i = 0; i < size; i++)
+            if (live.test(ids[i]))
+                ids[j++] = ids[i];
+        size = j;
+        removed = 0;
+        return size == 0;
+    }
+
+    Postings copy() {
+        var ret = new Postings();
+        ret.ids = Arrays.copyOf(ids, Math.max(size, 2));
+        ret.size = size;
+        ret.removed = removed;
+        return ret;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    IntStream stream() {
+        return Arrays.stream(ids, 0, size);
+    }
+}
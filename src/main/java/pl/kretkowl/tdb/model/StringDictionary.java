@@ -0,0 +1,44 @@
+package pl.kretkowl.tdb.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns consecutive ids to strings, so every distinct attribute key and
+ * value is kept in memory once and indexes can use ints instead of strings.
+ */
+class StringDictionary implements Strings {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    @Override
+    public String string(int id) {
+        return strings.get(id);
+    }
+
+    @Override
+    public int id(String s) {
+        return ids.getOrDefault(s, -1);
+    }
+
+    int intern(String s) {
+        return ids.computeIfAbsent(s, __ -> {
+            strings.add(s);
+            return strings.size() - 1;
+        });
+    }
+
+    StringDictionary copy() {
+        var ret = new StringDictionary();
+        ret.ids.putAll(ids);
+        ret.strings.addAll(strings);
+        return ret;
+    }
+
+    int size() {
+        return strings.size();
+    }
+}
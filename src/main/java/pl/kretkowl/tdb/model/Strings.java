@@ -0,0 +1,14 @@
+package pl.kretkowl.tdb.model;
+
+/**
+ * Two-way mapping between strings and ids.
+ */
+interface Strings {
+
+    String string(int id);
+
+    /**
+     * Returns id of string or -1 if it is unknown.
+     */
+    int id(String s);
+}
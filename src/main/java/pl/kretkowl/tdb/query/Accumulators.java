@@ -0,0 +1,108 @@
+package pl.kretkowl.tdb.query;
+
+import static pl.kretkowl.tdb.query.Commons.*;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import pl.kretkowl.tdb.query.Operators.Accumulator;
+
+/**
+ * Aggregate functions of accumulate, each keeping only its running result
+ * (distinct values for count).
+ */
+@UtilityClass
+class Accumulators {
+
+    /**
+     * Counts distinct values, null is counted as one of them.
+     */
+    static Accumulator count() {
+        return new Count();
+    }
+
+    /**
+     * Keeps greatest value in order of comparator, first one of equal ones.
+     */
+    static Accumulator max(Comparator<String> comparator) {
+        return new Max(comparator);
+    }
+
+    static Accumulator min(Comparator<String> comparator) {
+        return new Max(comparator.reversed());
+    }
+
+    /**
+     * Sums values as numbers, value that is not a number counts as 0.
+     */
+    static Accumulator sum() {
+        return new Sum();
+    }
+
+    private static final class Count implements Accumulator {
+        private final Set<String> values = new HashSet<>();
+
+        @Override
+        public void add(String value) {
+            values.add(value);
+        }
+
+        @Override
+        public void addAll(Accumulator other) {
+            values.addAll(((Count) other).values);
+        }
+
+        @Override
+        public String result() {
+            return Long.toString(values.size());
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static final class Max implements Accumulator {
+        private final Comparator<String> comparator;
+        private boolean empty = true;
+        private String max;
+
+        @Override
+        public void add(String value) {
+            if (empty || comparator.compare(value, max) > 0) {
+                max = value;
+                empty = false;
+            }
+        }
+
+        @Override
+        public void addAll(Accumulator other) {
+            if (!((Max) other).empty)
+                add(((Max) other).max);
+        }
+
+        @Override
+        public String result() {
+            return max;
+        }
+    }
+
+    private static final class Sum implements Accumulator {
+        private long sum;
+
+        @Override
+        public void add(String value) {
+            sum += convert2Num(value).orElse(0l);
+        }
+
+        @Override
+        public void addAll(Accumulator other) {
+            sum += ((Sum) other).sum;
+        }
+
+        @Override
+        public String result() {
+            return Long.toString(sum);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package pl.kretkowl.tdb.query;
+
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Rows passed between operators in batch mode, with selection vector -
+ * indexes of rows that are still in batch. Filter only shortens selection,
+ * rows are not moved. Batch is reused by producer after consumer returns,
+ * so consumer must not keep it.
+ */
+public final class Batch {
+
+    static final int CAPACITY = 4096;
+
+    @SuppressWarnings("unchecked")
+    private final Map<String, String>[] rows = new Map[CAPACITY];
+    private final int[] selection = new int[CAPACITY];
+    private int count;
+    private int size;
+
+    /**
+     * Returns number of selected rows.
+     */
+    int size() {
+        return size;
+    }
+
+    Map<String, String> row(int i) {
+        return rows[selection[i]];
+    }
+
+    void add(Map<String, String> row) {
+        rows[count] = row;
+        selection[size++] = count++;
+    }
+
+    boolean isFull() {
+        return count == CAPACITY;
+    }
+
+    void clear() {
+        count = size = 0;
+    }
+
+    void retain(Predicate<Map<String, String>> predicate) {
+        int j = 0;
+        for (int i = 0; i < size; i++)
+            if (predicate.test(rows[selection[i]]))
+                selection[j++] = selection[i];
+        size = j;
+    }
+
+    void replace(UnaryOperator<Map<String, String>> projection) {
+        for (int i = 0; i < size; i++)
+            rows[selection[i]] = projection.apply(rows[selection[i]]);
+    }
+
+    /**
+     * Passes rows of stream to consumer in batches.
+     */
+    static void split(Stream<Map<String, String>> rows, Consumer<Batch> consumer) {
+        var batch = new Batch();
+        rows.forEachOrdered(r -> {
+            batch.add(r);
+            if (batch.isFull()) {
+                consumer.accept(batch);
+                batch.clear();
+            }
+        });
+        if (batch.count > 0)
+            consumer.accept(batch);
+    }
+}
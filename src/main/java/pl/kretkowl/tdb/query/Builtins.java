@@ -1,8 +1,10 @@
 package pl.kretkowl.tdb.query;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
 import lombok.experimental.UtilityClass;
@@ -12,23 +14,42 @@ import static pl.kretkowl.tdb.query.Commons.*;
 public class Builtins {
 
     public static String dispatch(String name, List<String> args) {
+        return dispatch(name, args.size(), args::get);
+    }
+
+    /**
+     * Calls function with arguments computed on demand, by index. nvl and
+     * nullif compute only arguments that decide result, other functions
+     * compute all of them.
+     */
+    public static String dispatch(String name, int argCount, IntFunction<String> arg) {
         switch (name) { // it could be done prettier, enum or
-        case "nvl": return nvl(args);
-        case "nullif": return nullIf(args);
+        case "nvl": return nvl(argCount, arg);
+        case "nullif": return nullIf(argCount, arg);
+        }
+        var args = new ArrayList<String>(argCount);
+        for (int i = 0; i < argCount; i++)
+            args.add(arg.apply(i));
+        switch (name) {
         case "length": return length(args);
         case "substr": return substr(args);
         default: throw new RuntimeException("unknown function: " + name);
         }
     }
 
-    private static String nvl(List<String> args) {
-        return args.stream().filter(Objects::nonNull).findFirst().orElse(null);
+    private static String nvl(int argCount, IntFunction<String> arg) {
+        for (int i = 0; i < argCount; i++) {
+            var v = arg.apply(i);
+            if (v != null)
+                return v;
+        }
+        return null;
     }
 
-    private static String nullIf(List<String> args) {
-        if (args.size() != 2)
+    private static String nullIf(int argCount, IntFunction<String> arg) {
+        if (argCount != 2)
             throw new RuntimeException("nullIf takes exactly 2 arguments");
-        return convert2Bool(args.get(0)) ? null : args.get(1);
+        return convert2Bool(arg.apply(0)) ? null : arg.apply(1);
     }
 
     private static String length(List<String> args) {
@@ -5,6 +5,7 @@ import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
 
 import lombok.experimental.UtilityClass;
+import pl.kretkowl.tdb.model.AttributeCondition;
 
 @UtilityClass
 public class Commons {
@@ -17,12 +18,12 @@ public class Commons {
         return b ? "t" : "f";
     }
 
+    /**
+     * Returns value as number, as compared by conditions pushed into scans
+     * (see {@link AttributeCondition#number(String)}).
+     */
     public static Optional<Long> convert2Num(String s) {
-        try {
-            return Optional.of(Long.parseLong(s));
-        } catch (NumberFormatException nfe) {
-            return Optional.empty();
-        }
+        return Optional.ofNullable(AttributeCondition.number(s));
     }
 
     public static BiFunction<String, String, String> numComparator(BiPredicate<Long, Long> numPredicate) {
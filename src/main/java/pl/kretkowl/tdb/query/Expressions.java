@@ -0,0 +1,281 @@
+package pl.kretkowl.tdb.query;
+
+import static pl.kretkowl.tdb.query.Commons.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import lombok.experimental.UtilityClass;
+import pl.kretkowl.tdb.model.AttributeCondition;
+import pl.kretkowl.tdb.query.QueryParser.QueryFunction;
+import pl.kretkowl.tdb.query.QueryParser.Token;
+import pl.kretkowl.tdb.query.QueryParser.TokenType;
+
+/**
+ * Nodes of expression tree built by parser. Every node with constant
+ * operands is folded into constant when built, other nodes prepare what
+ * does not depend on row (regular expression, set of IN values, number to
+ * compare with) once, instead of on every row.
+ */
+@UtilityClass
+class Expressions {
+
+    static QueryFunction constant(String value) {
+        return new QueryFunction() {
+
+            public String apply(Map<String, String> ma) {
+                return value;
+            }
+
+            @Override
+            public boolean isConstant() {
+                return true;
+            }
+        };
+    }
+
+    static QueryFunction symbol(String name) {
+        return new QueryFunction() {
+
+            public String apply(Map<String, String> ma) {
+                return ma.get(name);
+            }
+
+            @Override
+            public String asLabel() {
+                return name.substring(name.lastIndexOf('.') + 1);
+            }
+
+            @Override
+            public String asSymbol() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * Returns constant with value computed once, if computation does not fail
+     * (then it is left to fail when query runs).
+     */
+    private static Optional<QueryFunction> fold(Supplier<String> value) {
+        try {
+            return Optional.of(constant(value.get()));
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    static QueryFunction not(QueryFunction operand) {
+        QueryFunction ret = ma -> convert2String(!convert2Bool(operand.apply(ma)));
+        return operand.isConstant() ? fold(() -> ret.apply(null)).orElse(ret) : ret;
+    }
+
+    static QueryFunction isNull(QueryFunction operand, boolean negated) {
+        QueryFunction ret = ma -> convert2String((operand.apply(ma) == null) != negated);
+        return operand.isConstant() ? fold(() -> ret.apply(null)).orElse(ret) : ret;
+    }
+
+    static QueryFunction call(String name, List<QueryFunction> args) {
+        QueryFunction ret = ma -> Builtins.dispatch(name, args.size(), i -> args.get(i).apply(ma));
+        return args.stream().allMatch(QueryFunction::isConstant) ? fold(() -> ret.apply(null)).orElse(ret) : ret;
+    }
+
+    static QueryFunction in(QueryFunction operand, List<QueryFunction> list) {
+        Function<Map<String, String>, Boolean> contains;
+        if (list.stream().allMatch(QueryFunction::isConstant)) {
+            var values = list.stream().map(c -> c.apply(null)).filter(Objects::nonNull).collect(Collectors.toCollection(HashSet::new));
+            contains = ma -> {
+                var v = operand.apply(ma);
+                return v != null && values.contains(v);
+            };
+        } else
+            contains = ma -> {
+                var v = operand.apply(ma);
+                if (v == null)
+                    return false;
+                for (var e : list)
+                    if (v.equals(e.apply(ma)))
+                        return true;
+                return false;
+            };
+        QueryFunction ret = new QueryFunction() {
+
+            public String apply(Map<String, String> ma) {
+                return convert2String(contains.apply(ma));
+            }
+
+            @Override
+            public AttributeCondition asCondition() {
+                if (operand.asSymbol() == null || !list.stream().allMatch(QueryFunction::isConstant))
+                    return null;
+                return AttributeCondition.in(operand.asSymbol(), list.stream()
+                        .map(m -> m.apply(null))
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toSet()));
+            }
+        };
+        return operand.isConstant() && list.stream().allMatch(QueryFunction::isConstant)
+            ? fold(() -> ret.apply(null)).orElse(ret)
+            : ret;
+    }
+
+    private static final Map<TokenType, BiPredicate<Long, Long>> NUMERIC_COMPARISONS = Map.of(
+        TokenType.GT, (n1, n2) -> n1 > n2,
+        TokenType.GE, (n1, n2) -> n1 >= n2,
+        TokenType.LT, (n1, n2) -> n1 < n2,
+        TokenType.LE, (n1, n2) -> n1 <= n2);
+
+    private static final Map<Token, BiFunction<String, String, String>> OPERATORS = Map.of(
+        new Token(TokenType.EQ), (s1,s2) -> convert2String(s1 == null ? s2 == null : s1.equals(s2)),
+        new Token(TokenType.NE), (s1,s2) -> convert2String(s1 == null ? s2 != null : !s1.equals(s2)),
+        new Token(TokenType.MATCHES), (s1,s2) -> convert2String((s1 == null && s2 == null) || Pattern.compile(s2).matcher(s1).find()),
+        new Token(TokenType.CONCAT), (s1,s2) -> (s1 == null ? "" : s1) + (s2 == null ? "" : s2),
+        new Token(TokenType.GT), numComparator(NUMERIC_COMPARISONS.get(TokenType.GT)),
+        new Token(TokenType.GE), numComparator(NUMERIC_COMPARISONS.get(TokenType.GE)),
+        new Token(TokenType.LT), numComparator(NUMERIC_COMPARISONS.get(TokenType.LT)),
+        new Token(TokenType.LE), numComparator(NUMERIC_COMPARISONS.get(TokenType.LE)),
+        new Token(TokenType.SYMBOL, "and"), (s1,s2) -> convert2String(convert2Bool(s1) && convert2Bool(s2)),
+        new Token(TokenType.SYMBOL, "or"), (s1,s2) -> convert2String(convert2Bool(s1) || convert2Bool(s2))
+    );
+
+    /**
+     * Comparison operators with their counterparts for swapped operands.
+     */
+    private static final Map<TokenType, TokenType> COMPARISONS = Map.of(
+        TokenType.GT, TokenType.LT,
+        TokenType.GE, TokenType.LE,
+        TokenType.LT, TokenType.GT,
+        TokenType.LE, TokenType.GE);
+
+    static boolean isOperator(Token token) {
+        return OPERATORS.containsKey(token);
+    }
+
+    private static final Token AND = new Token(TokenType.SYMBOL, "and");
+    private static final Token OR = new Token(TokenType.SYMBOL, "or");
+
+    static QueryFunction operator(Token operator, QueryFunction left, QueryFunction right) {
+        var function = OPERATORS.get(operator);
+        if (left.isConstant() && right.isConstant()) {
+            var folded = fold(() -> function.apply(left.apply(null), right.apply(null)));
+            if (folded.isPresent())
+                return folded.get();
+        }
+        boolean or = operator.equals(OR);
+        if ((or || operator.equals(AND)) && left.isConstant() && convert2Bool(left.apply(null)) == or)
+            return constant(convert2String(or)); // right side is never needed
+        return new OperatorFunction(operator, left, right, evaluator(operator, left, right, function));
+    }
+
+    /**
+     * Returns evaluator specialized for constant operand, when there is one.
+     */
+    private static Function<Map<String, String>, String> evaluator(Token operator, QueryFunction left, QueryFunction right,
+            BiFunction<String, String, String> function) {
+        if (operator.equals(AND)) // right side only when it decides
+            return ma -> convert2String(convert2Bool(left.apply(ma)) && convert2Bool(right.apply(ma)));
+        if (operator.equals(OR))
+            return ma -> convert2String(convert2Bool(left.apply(ma)) || convert2Bool(right.apply(ma)));
+        var type = operator.getType();
+        if (type == TokenType.MATCHES && right.isConstant() && right.apply(null) != null) {
+            try {
+                var pattern = Pattern.compile(right.apply(null));
+                return ma -> {
+                    var v = left.apply(ma);
+                    return convert2String(v != null && pattern.matcher(v).find());
+                };
+            } catch (PatternSyntaxException e) {
+                // reported when query runs
+            }
+        }
+        if (COMPARISONS.containsKey(type) && (left.isConstant() || right.isConstant())) {
+            var operand = left.isConstant() ? right : left;
+            var comparison = NUMERIC_COMPARISONS.get(left.isConstant() ? COMPARISONS.get(type) : type);
+            var constant = convert2Num((left.isConstant() ? left : right).apply(null));
+            if (constant.isEmpty())
+                return __ -> null;
+            long c = constant.get();
+            return ma -> convert2Num(operand.apply(ma)).map(v -> convert2String(comparison.test(v, c))).orElse(null);
+        }
+        return ma -> function.apply(left.apply(ma), right.apply(ma));
+    }
+
+    private static class OperatorFunction implements QueryFunction {
+        final Token operator;
+        final QueryFunction left;
+        final QueryFunction right;
+        final Function<Map<String, String>, String> evaluator;
+
+        OperatorFunction(Token operator, QueryFunction left, QueryFunction right, Function<Map<String, String>, String> evaluator) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.evaluator = evaluator;
+        }
+
+        public String apply(Map<String, String> ma) {
+            return evaluator.apply(ma);
+        }
+
+        @Override
+        public List<QueryFunction> conjuncts() {
+            if (!operator.equals(AND))
+                return List.of(this);
+            var ret = new ArrayList<>(left.conjuncts());
+            ret.addAll(right.conjuncts());
+            return ret;
+        }
+
+        @Override
+        public List<QueryFunction> equalityOperands() {
+            return operator.getType() == TokenType.EQ ? List.of(left, right) : null;
+        }
+
+        @Override
+        public AttributeCondition asCondition() {
+            var symbol = left.asSymbol() != null ? left : right;
+            var constant = symbol == left ? right : left;
+            if (symbol.asSymbol() == null || !constant.isConstant() || constant.apply(null) == null)
+                return null;
+            if (operator.getType() == TokenType.EQ)
+                return AttributeCondition.in(symbol.asSymbol(), Set.of(constant.apply(null)));
+            if (operator.getType() == TokenType.MATCHES && symbol == left) {
+                try {
+                    return AttributeCondition.matching(symbol.asSymbol(), Pattern.compile(constant.apply(null)).asPredicate());
+                } catch (PatternSyntaxException e) {
+                    return null; // reported when query runs
+                }
+            }
+            if (COMPARISONS.containsKey(operator.getType()))
+                return convert2Num(constant.apply(null))
+                    .map(c -> range(symbol.asSymbol(), symbol == left ? operator.getType() : COMPARISONS.get(operator.getType()), c))
+                    .orElseGet(() -> AttributeCondition.in(symbol.asSymbol(), Set.of())); // comparison with non-number is never true
+            return null;
+        }
+
+        /**
+         * Returns condition for symbol compared with constant (symbol on the left).
+         */
+        private static AttributeCondition range(String symbol, TokenType comparison, long c) {
+            switch (comparison) {
+            case GT: return c == Long.MAX_VALUE ? AttributeCondition.in(symbol, Set.of()) : AttributeCondition.between(symbol, c + 1, Long.MAX_VALUE);
+            case GE: return AttributeCondition.between(symbol, c, Long.MAX_VALUE);
+            case LT: return c == Long.MIN_VALUE ? AttributeCondition.in(symbol, Set.of()) : AttributeCondition.between(symbol, Long.MIN_VALUE, c - 1);
+            case LE: return AttributeCondition.between(symbol, Long.MIN_VALUE, c);
+            default: throw new IllegalArgumentException(comparison.name());
+            }
+        }
+    }
+}
@@ -1,9 +1,18 @@
 package pl.kretkowl.tdb.query;
 
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public interface Operator {
 
     public Stream<Map<String, String>> select(QueryContext ctx);
+
+    /**
+     * Passes rows to consumer in batches. Operators without batch
+     * implementation cut rows of {@link #select(QueryContext)} into batches.
+     */
+    default void selectBatches(QueryContext ctx, Consumer<Batch> consumer) {
+        Batch.split(select(ctx), consumer);
+    }
 }
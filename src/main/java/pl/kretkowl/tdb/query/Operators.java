@@ -1,22 +1,39 @@
 package pl.kretkowl.tdb.query;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
+import java.util.stream.Collector;
 import java.util.stream.Stream;
 import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
 
 import java.util.Collections;
 
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.Value;
+import pl.kretkowl.tdb.model.AttributeCondition;
 import pl.kretkowl.tdb.model.DB;
 import pl.kretkowl.tdb.model.Document;
 import pl.kretkowl.tdb.model.Entry;
-import static pl.kretkowl.tdb.Util.toMap;
 
 public class Operators {
 
@@ -24,16 +41,57 @@ public class Operators {
         return ctx -> entrySelect.apply(ctx.db).map(Entry::getAttributes);
     }
 
-    public static Operator selectAll() {
-        return select(DB::findAll);
+    /**
+     * Reads entries of source. When conditions are pushed into it, only
+     * entries satisfying them are read, using attribute index. Large source
+     * is read as parallel stream when query runs in parallel.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class Scan implements Operator {
+        private final Function<DB, Stream<Entry>> source;
+        private final ToIntFunction<DB> size;
+        /**
+         * Documents of source, null for all.
+         */
+        private final Predicate<Document> documentFilter;
+        private final List<AttributeCondition> conditions = new ArrayList<>();
+
+        void addCondition(AttributeCondition condition) {
+            conditions.add(condition);
+        }
+
+        List<AttributeCondition> getConditions() {
+            return Collections.unmodifiableList(conditions);
+        }
+
+        /**
+         * Returns number of entries of source, not counting conditions.
+         */
+        int size(DB db) {
+            return size.applyAsInt(db);
+        }
+
+        @Override
+        public Stream<Map<String, String>> select(QueryContext ctx) {
+            var entries = conditions.isEmpty()
+                ? source.apply(ctx.db)
+                : ctx.db.findByAttributes(conditions, documentFilter);
+            if (ctx.isParallel() && size(ctx.db) >= QueryContext.PARALLEL_THRESHOLD)
+                entries = entries.parallel();
+            return entries.map(Entry::getAttributes);
+        }
     }
 
-    public static Operator selectByDocumentName(String name) {
-        return select(db -> db.findByDocumentName(name));
+    public static Scan selectAll() {
+        return new Scan(DB::findAll, DB::entryCount, null);
     }
 
-    public static Operator selectByDocument(Document d) {
-        return select(db -> db.findByDocument(d));
+    public static Scan selectByDocumentName(String name) {
+        return new Scan(db -> db.findByDocumentName(name), db -> db.entryCountByName(name), d -> d.getName().equals(name));
+    }
+
+    public static Scan selectByDocument(Document d) {
+        return new Scan(db -> db.findByDocument(d), db -> db.entryCount(d), d::equals);
     }
 
     public static Operator selectByAttribute(String attribute, String value) {
@@ -44,45 +102,250 @@ public class Operators {
         return select(db -> db.findByAttribute(attribute, value));
     }
 
-    private static Operator transform(int base, Function<Stream<Map<String, String>>, Stream<Map<String, String>>> transformer) {
-        return ctx -> transformer.apply(ctx.execute(base));
+    /**
+     * Operator computing its rows from rows of another one, as stream or in
+     * batches.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    private static class Transform implements Operator {
+        private final int base;
+        private final Function<Stream<Map<String, String>>, Stream<Map<String, String>>> transformer;
+        private final BiConsumer<QueryContext, Consumer<Batch>> batchTransformer;
+
+        @Override
+        public Stream<Map<String, String>> select(QueryContext ctx) {
+            return transformer.apply(ctx.execute(base));
+        }
+
+        @Override
+        public void selectBatches(QueryContext ctx, Consumer<Batch> consumer) {
+            batchTransformer.accept(ctx, consumer);
+        }
+    }
+
+    /**
+     * Returns all rows of partial result read in batches.
+     */
+    private static List<Map<String, String>> collectBatches(QueryContext ctx, int base) {
+        var ret = new ArrayList<Map<String, String>>();
+        ctx.executeBatches(base, b -> {
+            for (int i = 0; i < b.size(); i++)
+                ret.add(b.row(i));
+        });
+        return ret;
     }
 
     public static Operator filter(int base, Predicate<Map<String, String>> predicate) {
-        return transform(base, s -> s.filter(predicate));
+        return new Transform(base, s -> s.filter(predicate), (ctx, consumer) -> ctx.executeBatches(base, b -> {
+            b.retain(predicate);
+            if (b.size() > 0)
+                consumer.accept(b);
+        }));
     }
 
     public static Operator project(int base, UnaryOperator<Map<String, String>> projection) {
-        return transform(base, s -> s.map(projection));
+        return new Transform(base, s -> s.map(projection), (ctx, consumer) -> ctx.executeBatches(base, b -> {
+            b.replace(projection);
+            consumer.accept(b);
+        }));
+    }
+
+    /**
+     * Expression rows are sorted by, ascending (see {@link SortKey}) or descending.
+     */
+    @Value
+    public static class Order {
+        Function<Map<String, String>, String> expression;
+        boolean descending;
     }
 
-    public static Operator sort(int base, Comparator<Map<String, String>> comparator) {
-        return transform(base, s -> s.sorted(comparator));
+    /**
+     * Sorts rows, within memory limit of query (see {@link SortedRows}).
+     */
+    public static Operator sort(int base, List<Order> order) {
+        return new Sort(base, order);
+    }
+
+    /**
+     * Sorts rows within memory limit of context, see {@link SortedRows}.
+     * Sorted runs are merged while rows are read, so sorted rows are best
+     * read as stream, not collected in batches.
+     */
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    static class Sort implements Operator {
+        private final int base;
+        private final List<Order> order;
+
+        @Override
+        public Stream<Map<String, String>> select(QueryContext ctx) {
+            var sorted = new SortedRows(order, ctx.getMemoryLimit(), ctx.getSpillDirectory());
+            ctx.onClose(sorted::close);
+            ctx.forEachRow(base, sorted::add);
+            return sorted.sorted();
+        }
+    }
+
+    /**
+     * Sorts rows keeping only first offset + count of them in heap, then
+     * skips offset.
+     */
+    public static Operator topN(int base, List<Order> order, long offset, long count) {
+        var keys = SortedRows.keys(order);
+        var comparator = SortedRows.comparator(order);
+        long n = offset + count;
+        Function<Consumer<Consumer<Map<String, String>>>, Stream<Map<String, String>>> top = rows -> {
+            var heap = new PriorityQueue<SortedRows.Row>(comparator.reversed());
+            var position = new long[1];
+            rows.accept(r -> {
+                if (n == 0)
+                    return;
+                var sorted = new SortedRows.Row(r, keys.apply(r), position[0]++);
+                if (heap.size() < n)
+                    heap.add(sorted);
+                else if (comparator.compare(sorted, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(sorted);
+                }
+            });
+            var ret = new ArrayList<>(heap);
+            ret.sort(comparator);
+            return ret.stream().skip(offset).map(r -> r.row);
+        };
+        return new Transform(base, s -> top.apply(s::forEachOrdered), (ctx, consumer) -> Batch.split(top.apply(row -> ctx.executeBatches(base, b -> {
+                for (int i = 0; i < b.size(); i++)
+                    row.accept(b.row(i));
+            })), consumer));
+    }
+
+    /**
+     * Skips offset rows and returns at most count following. Rows are read
+     * as stream, so source stops when there are enough of them.
+     */
+    public static Operator limit(int base, long offset, long count) {
+        return ctx -> ctx.execute(base).skip(offset).limit(count);
     }
 
     public static Operator distinct(int base) {
-        return transform(base, Stream::distinct);
+        return new Transform(base, Stream::distinct,
+                (ctx, consumer) -> Batch.split(new LinkedHashSet<>(collectBatches(ctx, base)).stream(), consumer));
+    }
+
+    /**
+     * Aggregate of values in group, updated once per row.
+     */
+    public interface Accumulator {
+        void add(String value);
+
+        /**
+         * Adds values added to other accumulator of the same function (when
+         * rows of group are aggregated in parts).
+         */
+        void addAll(Accumulator other);
+
+        String result();
+    }
+
+    /**
+     * Aggregate function applied to value of expression, named by alias.
+     */
+    @Value
+    public static class Aggregate {
+        String alias;
+        Function<Map<String, String>, String> expression;
+        Supplier<Accumulator> accumulator;
     }
 
-    public static Operator groupBy(int base, List<String> attributes, Function<List<Map<String, String>>, Map<String, String>> aggregates) {
-        return transform(base, s -> {
-            var group = s.collect(groupingBy(attrs -> attributes.stream().collect(toMap(a->a, a-> (String)attrs.get(a)))));
-            return group.entrySet().stream()
+    /**
+     * Groups rows by values of attributes, in one pass: every row is added to
+     * accumulators of its group, rows are not kept.
+     */
+    public static Operator groupBy(int base, List<String> attributes, List<Aggregate> aggregates) {
+        BiConsumer<Map<List<String>, Accumulator[]>, Map<String, String>> add = (groups, row) -> {
+            var key = new String[attributes.size()];
+            for (int i = 0; i < key.length; i++)
+                key[i] = row.get(attributes.get(i));
+            var accumulators = groups.computeIfAbsent(Arrays.asList(key), __ -> aggregates.stream()
+                    .map(a -> a.getAccumulator().get())
+                    .toArray(Accumulator[]::new));
+            for (int i = 0; i < accumulators.length; i++)
+                accumulators[i].add(aggregates.get(i).getExpression().apply(row));
+        };
+        BinaryOperator<Map<List<String>, Accumulator[]>> combine = (groups, other) -> {
+            other.forEach((key, accumulators) -> {
+                var existing = groups.putIfAbsent(key, accumulators);
+                if (existing != null)
+                    for (int i = 0; i < existing.length; i++)
+                        existing[i].addAll(accumulators[i]);
+            });
+            return groups;
+        };
+        Function<Map<List<String>, Accumulator[]>, Stream<Map<String, String>>> result = groups ->
+            groups.entrySet().stream()
                 .map(e -> {
-                    Map<String, String> ret = new HashMap<>(e.getKey());
-                    ret.putAll(aggregates.apply(e.getValue()));
+                    Map<String, String> ret = new HashMap<>();
+                    for (int i = 0; i < attributes.size(); i++)
+                        ret.put(attributes.get(i), e.getKey().get(i));
+                    for (int i = 0; i < aggregates.size(); i++)
+                        ret.put(aggregates.get(i).getAlias(), e.getValue()[i].result());
                     return ret;
                 });
-        });
+        return new Transform(base, s -> result.apply(s.collect(Collector.of(HashMap::new, add, combine))),
+            (ctx, consumer) -> {
+                var groups = new HashMap<List<String>, Accumulator[]>();
+                ctx.executeBatches(base, b -> {
+                    for (int i = 0; i < b.size(); i++)
+                        add.accept(groups, b.row(i));
+                });
+                Batch.split(result.apply(groups), consumer);
+            });
+    }
+
+    /**
+     * Combines every row of one result with every row of another, also with
+     * empty row on either side (but not both). Rows are joined into views
+     * (see {@link RowViews}), attributes of second one win, unless they are
+     * also attributes of shadowing aliases in first one (so sources can be joined in other order than they are
+     * listed, with same result). When keys are set, only pairs with equal
+     * keys (null equal to null, as in WHERE) are combined, using hash table
+     * built on one side, while rows of other one are streamed.
+     */
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class Join implements Operator {
+        @Setter(AccessLevel.PACKAGE)
+        private int base1;
+        @Setter(AccessLevel.PACKAGE)
+        private int base2;
+        private Function<Map<String, String>, String> key1;
+        private Function<Map<String, String>, String> key2;
+        private boolean buildFirst;
+        @Setter(AccessLevel.PACKAGE)
+        private List<String> shadowingAliases;
+
+        void setKeys(Function<Map<String, String>, String> key1, Function<Map<String, String>, String> key2, boolean buildFirst) {
+            this.key1 = key1;
+            this.key2 = key2;
+            this.buildFirst = buildFirst;
+        }
+
+        @Override
+        public Stream<Map<String, String>> select(QueryContext ctx) {
+            if (key1 == null)
+                return Stream.concat(ctx.execute(base1), Stream.of(Collections.<String, String>emptyMap())).flatMap(m -> 
+                    Stream.concat(ctx.executeShared(base2), Stream.of(Collections.<String, String>emptyMap()))
+                        .filter(m2 -> !(m.isEmpty() && m2.isEmpty()))
+                        .map(m2 -> RowViews.joined(m, m2, shadowingAliases)));
+
+            var built = Stream.concat(ctx.execute(buildFirst ? base1 : base2), Stream.of(Collections.<String, String>emptyMap()))
+                .collect(groupingBy(r -> Optional.ofNullable((buildFirst ? key1 : key2).apply(r)), toList()));
+            var probeKey = buildFirst ? key2 : key1;
+            return Stream.concat(ctx.execute(buildFirst ? base2 : base1), Stream.of(Collections.<String, String>emptyMap()))
+                .flatMap(p -> built.getOrDefault(Optional.ofNullable(probeKey.apply(p)), List.of()).stream()
+                    .filter(b -> !(p.isEmpty() && b.isEmpty()))
+                    .map(b -> buildFirst ? RowViews.joined(b, p, shadowingAliases) : RowViews.joined(p, b, shadowingAliases)));
+        }
     }
 
-    public static Operator cartesian(int base1, int base2) {
-        return ctx -> 
-            Stream.concat(ctx.execute(base1), Stream.of(Collections.<String, String>emptyMap())).flatMap(m -> 
-                Stream.concat(ctx.execute(base2), Stream.of(Collections.<String, String>emptyMap())).map(m2 -> {
-                    Map<String, String> newM = new HashMap<>(m);
-                    newM.putAll(m2);
-                    return newM;
-                })).filter(m -> !m.isEmpty());
+    public static Join cartesian(int base1, int base2) {
+        return new Join(base1, base2, null, null, false, List.of());
     }
 }
@@ -1,33 +1,276 @@
 package pl.kretkowl.tdb.query;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import lombok.RequiredArgsConstructor;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.SneakyThrows;
 import pl.kretkowl.tdb.model.DB;
 
-@RequiredArgsConstructor
+/**
+ * Partial results of query, each one computed by operator from preceding ones.
+ * Partial result read more than once during execution (e.g. right side of
+ * join without keys) is kept in {@link RowBuffer} and replayed, unless it
+ * does not fit in buffer limit - then it is computed again on every read.
+ * <p>
+ * Whole query runs in batch mode by default: operators pass batches of rows
+ * (see {@link Batch}) and filters only narrow their selection, instead of
+ * going through stream stage per row. Joins and operators without batch
+ * implementation read their inputs as streams. When parallelism is set and
+ * some scan is large, query runs as parallel streams instead.
+ */
 public class QueryContext {
 
+    /**
+     * Number of entries of scan for query to run in parallel (when
+     * parallelism is set), smaller ones are not worth starting threads.
+     */
+    static final int PARALLEL_THRESHOLD = 50_000;
+
     final DB db;
     private List<Operator> partialResults = new ArrayList<>();
+    /**
+     * Approximate number of bytes of rows buffered or sorted in memory (each
+     * buffer and each sort separately).
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter
+    private long memoryLimit;
+    /**
+     * Directory for rows that do not fit in memory limit while sorting, null
+     * for default temporary directory.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter
+    private Path spillDirectory;
+    private final Map<Integer, Integer> reads = new ConcurrentHashMap<>();
+    private final Map<Integer, RowBuffer> buffers = new ConcurrentHashMap<>();
+    private final Map<Integer, Object> bufferLocks = new ConcurrentHashMap<>();
+    private final Set<Integer> unbuffered = ConcurrentHashMap.newKeySet();
+    @Setter(AccessLevel.PACKAGE)
+    private boolean batchMode = true;
+    /**
+     * Number of threads running large scans, 0 or 1 - sequential execution.
+     */
+    @Setter
+    private int parallelism;
+    @Getter(AccessLevel.PACKAGE)
+    private boolean parallel;
+    /**
+     * Attributes of result rows, in order, when query selects them by name,
+     * else null.
+     */
+    @Getter
+    @Setter(AccessLevel.PACKAGE)
+    private List<String> columns;
+    /**
+     * Releases resources of current execution (e.g. run files of sort).
+     */
+    private final List<Runnable> closeHandlers = Collections.synchronizedList(new ArrayList<>());
+
+    public QueryContext(DB db) {
+        this(db, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    QueryContext(DB db, long memoryLimit) {
+        this.db = db;
+        this.memoryLimit = memoryLimit;
+    }
 
     int lastIndex() {
         return partialResults.size()-1;
     }
 
+    /**
+     * Registers action run when rows of query were read or abandoned (see
+     * {@link #close()}).
+     */
+    void onClose(Runnable handler) {
+        closeHandlers.add(handler);
+    }
+
+    /**
+     * Releases resources of last execution that were not released when rows
+     * were read, e.g. when not all of them were read. Stream returned by
+     * {@link #execute()} closes context, so it should be closed by reader.
+     */
+    public void close() {
+        List<Runnable> handlers;
+        synchronized (closeHandlers) {
+            handlers = new ArrayList<>(closeHandlers);
+            closeHandlers.clear();
+        }
+        handlers.forEach(Runnable::run);
+    }
+
     void addPartial(Operator operator) {
         partialResults.add(operator);
     }
 
+    /**
+     * Returns rows of partial result, buffering them when it is read second time.
+     */
     Stream<Map<String, String>> execute(int i) {
-        return partialResults.get(i).select(this);
+        if (reads.merge(i, 1, Integer::sum) == 1)
+            return partialResults.get(i).select(this);
+        return executeShared(i);
+    }
+
+    /**
+     * Returns rows of partial result that caller is going to read more than once,
+     * buffering them on first read. Buffer is built by one thread, others
+     * reading partial result (in parallel execution) wait for it.
+     */
+    Stream<Map<String, String>> executeShared(int i) {
+        var buffer = buffers.get(i);
+        if (buffer != null)
+            return buffer.stream();
+        // partial result depends only on preceding ones, so locks are taken in order
+        synchronized (bufferLocks.computeIfAbsent(i, __ -> new Object())) {
+            buffer = buffers.get(i);
+            if (buffer != null)
+                return buffer.stream();
+            if (unbuffered.contains(i))
+                return partialResults.get(i).select(this);
+            buffer = new RowBuffer();
+            var rows = partialResults.get(i).select(this).iterator();
+            while (rows.hasNext())
+                if (buffer.add(rows.next()) > memoryLimit) {
+                    unbuffered.add(i);
+                    return Stream.concat(buffer.stream(), stream(rows));
+                }
+            buffers.put(i, buffer);
+            return buffer.stream();
+        }
+    }
+
+    /**
+     * Runs query as streams with parallel scans, on pool of given number of
+     * threads. Rows are collected in encounter order, so result (and order
+     * of rows sorted equal) is the same as of sequential execution. Query
+     * ending with sort is not collected - sort reads its input on pool and
+     * its rows (possibly spilled to disk) are read as stream.
+     */
+    @SneakyThrows
+    private Stream<Map<String, String>> executeParallel() {
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            if (partialResults.get(lastIndex()) instanceof Operators.Sort)
+                return pool.submit(() -> execute(lastIndex())).get();
+            return pool.submit(() -> execute(lastIndex()).collect(Collectors.toList())).get().stream();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
     }
 
+    private static <T> Stream<T> stream(Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false);
+    }
+
+    /**
+     * Passes rows of partial result to consumer in batches.
+     */
+    void executeBatches(int i, Consumer<Batch> consumer) {
+        partialResults.get(i).selectBatches(this, consumer);
+    }
+
+    /**
+     * Passes rows of partial result to consumer one by one, reading them in
+     * batches in batch mode.
+     */
+    void forEachRow(int i, Consumer<Map<String, String>> consumer) {
+        if (!batchMode || parallel) {
+            execute(i).forEachOrdered(consumer);
+            return;
+        }
+        executeBatches(i, b -> {
+            for (int j = 0; j < b.size(); j++)
+                consumer.accept(b.row(j));
+        });
+    }
+
+    /**
+     * Rows of query, computed while they are read. When all of them are read
+     * (forEachRemaining - forEach, collect etc.), they are computed in
+     * batches and passed on as they come. When reader may stop early
+     * (tryAdvance - findFirst, limit etc.), they are computed one by one as
+     * stream, so rows not read are not computed.
+     */
+    private final class BatchRows extends Spliterators.AbstractSpliterator<Map<String, String>> {
+        private Iterator<Map<String, String>> rows;
+        private boolean done;
+
+        BatchRows() {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map<String, String>> action) {
+            if (done)
+                return false;
+            if (rows == null)
+                rows = execute(lastIndex()).iterator();
+            if (!rows.hasNext()) {
+                done = true;
+                return false;
+            }
+            action.accept(rows.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Map<String, String>> action) {
+            if (done)
+                return;
+            done = true;
+            if (rows != null)
+                rows.forEachRemaining(action);
+            else
+                forEachRow(lastIndex(), action::accept);
+        }
+    }
+
+    /**
+     * Returns rows of query, computed while they are read. In batch mode
+     * rows are computed in batches, unless reader may stop early (see
+     * {@link BatchRows}) or query ends with sort - sorted rows are read as
+     * stream, so they are not all in memory at once when sort spills them to
+     * disk.
+     */
     public Stream<Map<String, String>> execute() {
-        return execute(lastIndex());
+        close();
+        reads.clear();
+        buffers.clear();
+        unbuffered.clear();
+        parallel = parallelism > 1 && partialResults.stream()
+            .anyMatch(p -> p instanceof Operators.Scan && ((Operators.Scan) p).size(db) >= PARALLEL_THRESHOLD);
+        try {
+            if (parallel)
+                return executeParallel().onClose(this::close);
+            if (!batchMode || partialResults.get(lastIndex()) instanceof Operators.Sort)
+                return execute(lastIndex()).onClose(this::close);
+            return StreamSupport.stream(new BatchRows(), false).onClose(this::close);
+        } catch (Throwable e) {
+            close();
+            throw e;
+        }
     }
 }
-
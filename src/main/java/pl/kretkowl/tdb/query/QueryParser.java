@@ -5,7 +5,6 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -14,14 +13,12 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
@@ -30,6 +27,7 @@ import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.ToString;
 import lombok.Value;
+import pl.kretkowl.tdb.model.AttributeCondition;
 import pl.kretkowl.tdb.model.DB;
 import pl.kretkowl.tdb.model.Document;
 import static pl.kretkowl.tdb.Util.toMap;
@@ -216,7 +214,7 @@ public class QueryParser {
         QueryContext qc = new QueryContext(db);
         PushbackReader pbr = new PushbackReader(new StringReader(query));
         Lexer lexer = new Lexer(pbr);
-        parseQuery(qc, lexer);
+        qc.setColumns(parseQuery(qc, lexer));
         if (lexer.readNextToken() != null) {
             throw failMatch("expected end of query").get();
         }
@@ -224,91 +222,113 @@ public class QueryParser {
         return qc;
     }
 
-    private static Set<String> KEYWORDS = Set.of("from", "where", "select", "accumulate", "grouping", "null", "order");
+    private static Set<String> KEYWORDS = Set.of("from", "where", "select", "accumulate", "grouping", "null", "order", "limit", "offset");
 
     private Supplier<RuntimeException> failMatch(String msg) {
         return () -> new IllegalStateException(msg);
     }
 
-    private void parseQuery(QueryContext qc, Lexer lexer) {
-        parseFrom(qc, lexer);
-        parseWhere(qc, lexer);
+    /**
+     * Returns selected attributes, null for select *.
+     */
+    private List<String> parseQuery(QueryContext qc, Lexer lexer) {
+        var sources = parseFrom(qc, lexer);
+        parseWhere(qc, lexer, sources);
         parseGroup(qc, lexer);
-        parseSelect(qc, lexer);
-        parseOrder(qc, lexer);
+        var columns = parseSelect(qc, lexer);
+        parseOrderAndLimit(qc, lexer);
+        return columns;
     }
 
-    private void parseFrom(QueryContext qc, Lexer l) {
+    private List<QueryPlanner.Source> parseFrom(QueryContext qc, Lexer l) {
         l.setDocumentAllowed(true);
         l.match(TokenType.SYMBOL, v -> v.equals("from")).orElseThrow(failMatch("from expected"));
+        var sources = new ArrayList<QueryPlanner.Source>();
+        var previousIndex = -1;
         do { 
-            var previousIndex = qc.lastIndex();
-            l.match(TokenType.LP)
-                .ifPresentOrElse(__ -> {
-                    parseQuery(qc, l);
-                    l.match(TokenType.RP).orElseThrow(failMatch("closing parenthesis expected"));
-                },
-                () -> {
-                    Operator op = l.match(TokenType.STAR)
-                        .map(__ -> Operators.selectAll())
-                        .orElseGet(() -> l.match(TokenType.DOCUMENT)
-                                .map(d -> new Document(d))
-                                .map(Operators::selectByDocument)
-                                .orElseGet(() -> l.match(TokenType.SYMBOL)
-                                    .map(Operators::selectByDocumentName)
-                                    .orElseThrow(failMatch("source symbol expected"))));
-                    qc.addPartial(op);
-                });
-            l.match(TokenType.SYMBOL, Predicate.not(KEYWORDS::contains))
-                .ifPresent(alias -> qc.addPartial(Operators.project(qc.lastIndex(), attrs -> 
-                                attrs.entrySet().stream()
-                                .flatMap(e -> Stream.of(e, Map.entry(alias + "." + e.getKey(), e.getValue())))
-                                .collect(toMap(Map.Entry::getKey, Map.Entry::getValue)))));
+            Operators.Scan scan = null;
+            if (l.match(TokenType.LP).isPresent()) {
+                parseQuery(qc, l);
+                l.match(TokenType.RP).orElseThrow(failMatch("closing parenthesis expected"));
+            } else {
+                scan = l.match(TokenType.STAR)
+                    .map(__ -> Operators.selectAll())
+                    .orElseGet(() -> l.match(TokenType.DOCUMENT)
+                            .map(d -> new Document(d))
+                            .map(Operators::selectByDocument)
+                            .orElseGet(() -> l.match(TokenType.SYMBOL)
+                                .map(Operators::selectByDocumentName)
+                                .orElseThrow(failMatch("source symbol expected"))));
+                qc.addPartial(scan);
+            }
+            var alias = l.match(TokenType.SYMBOL, Predicate.not(KEYWORDS::contains));
+            alias.ifPresent(a -> qc.addPartial(Operators.project(qc.lastIndex(), RowViews.aliased(a))));
+            int index = qc.lastIndex();
+            Operators.Join join = null;
             if (previousIndex >= 0) {
-                qc.addPartial(Operators.cartesian(previousIndex, qc.lastIndex()));
+                join = Operators.cartesian(previousIndex, qc.lastIndex());
+                qc.addPartial(join);
             }
+            sources.add(new QueryPlanner.Source(scan, alias.orElse(null), index, join));
+            previousIndex = qc.lastIndex();
         } while (l.match(TokenType.COMMA).isPresent());
         l.setDocumentAllowed(false);
+        return sources;
     }
 
-    private interface QueryFunction extends Function<Map<String, String>, String> {
+    interface QueryFunction extends Function<Map<String, String>, String> {
         default String asLabel() { return null; }
-    }
 
-    private String callBuiltin(String fun, List<String> args) {
-        return Builtins.dispatch(fun, args);
+        /**
+         * Returns name of attribute if function only reads it.
+         */
+        default String asSymbol() { return null; }
+
+        default boolean isConstant() { return false; }
+
+        /**
+         * Returns functions which all have to be true for this one to be true.
+         */
+        default List<QueryFunction> conjuncts() { return List.of(this); }
+
+        /**
+         * Returns both operands if function is equality.
+         */
+        default List<QueryFunction> equalityOperands() { return null; }
+
+        /**
+         * Returns condition equivalent to this function, with symbol in place
+         * of attribute, if index can answer it.
+         */
+        default AttributeCondition asCondition() { return null; }
     }
 
     private QueryFunction resolveValue(Token t) {
         var type = t.getType();
         var value = t.getValue();
         if (type == TokenType.STRING || type == TokenType.NUMBER)
-            return __ -> value;
+            return Expressions.constant(value);
 
         if (type == TokenType.SYMBOL)
-            if ("null".equalsIgnoreCase(value)) return __ -> null;
-            else if ("false".equalsIgnoreCase(value)) return __ -> "f";
-            else if ("true".equalsIgnoreCase(value)) return __ -> "t";
-            else return new QueryFunction() {
-
-                public String apply(Map<String, String> qc) {
-                    return qc.get(value);
-                }
-
-                @Override
-                public String asLabel() {
-                    return extractFieldName(value);
-                }
-            };
+            if ("null".equalsIgnoreCase(value)) return Expressions.constant(null);
+            else if ("false".equalsIgnoreCase(value)) return Expressions.constant(convert2String(false));
+            else if ("true".equalsIgnoreCase(value)) return Expressions.constant(convert2String(true));
+            else return Expressions.symbol(value);
         throw new RuntimeException("shouldn't happen");
     }
 
-    private void parseWhere(QueryContext qc, Lexer l) {
+    private void parseWhere(QueryContext qc, Lexer l, List<QueryPlanner.Source> sources) {
         if (l.match(TokenType.SYMBOL, "where"::equals).isEmpty())
             return;
         
         var function = parseExpression(l);
-        Predicate<Map<String, String>> pred = ma -> convert2Bool(function.apply(ma));
+        var residual = QueryPlanner.plan(qc.db, sources, function);
+        residual.removeIf(f -> f.isConstant() && convert2Bool(f.apply(null)));
+        if (residual.isEmpty())
+            return;
+        Predicate<Map<String, String>> pred = residual.size() == function.conjuncts().size()
+            ? ma -> convert2Bool(function.apply(ma))
+            : ma -> residual.stream().allMatch(f -> convert2Bool(f.apply(ma)));
         qc.addPartial(Operators.filter(qc.lastIndex(), pred));
     }
 
@@ -322,41 +342,29 @@ public class QueryParser {
         return matcher.group();
     }
 
-    private static final Comparator<String> QUERY_VALUE_COMPARATOR = new Comparator<String>() {
-
-        public int compare(String v1, String v2) {
-            if (v1 == null)
-                if (v2 == null) return 0;
-                else return 1;
-            else if (v2 == null) return -1;
-
-            return convert2Num(v1)
-                .flatMap(n1 -> convert2Num(v2).map(n2 -> (int)(n1 - n2)))
-                .orElseGet(() -> v1.compareTo(v2));
-        }
-    };
+    private static final Comparator<String> QUERY_VALUE_COMPARATOR = Comparator.comparing(SortKey::of);
 
     private static Pattern aliasPattern = Pattern.compile("[a-z][a-z_0-9]*");
 
-    private static Map<String, Function<Stream<String>, String>> groupingFunctions = Map.of(
-            "count", list -> Long.toString(list.distinct().count()), 
-            "max", list -> list.sorted(QUERY_VALUE_COMPARATOR.reversed()).findFirst().orElse(null),
-            "min", list -> list.sorted(QUERY_VALUE_COMPARATOR).findFirst().orElse(null),
-            "sum", list -> Long.toString(list.mapToLong(s -> convert2Num(s).orElse(0l)).sum()));
+    private static Map<String, Supplier<Operators.Accumulator>> groupingFunctions = Map.of(
+            "count", Accumulators::count,
+            "max", () -> Accumulators.max(QUERY_VALUE_COMPARATOR),
+            "min", () -> Accumulators.min(QUERY_VALUE_COMPARATOR),
+            "sum", Accumulators::sum);
             //"join");
 
     private void parseGroup(QueryContext qc, Lexer l) {
         if (l.match(TokenType.SYMBOL, "accumulate"::equals).isEmpty())
             return;
         
-        var aggregates = new HashMap<String, Function<List<Map<String, String>>, String>>();
+        var aggregates = new ArrayList<Operators.Aggregate>();
         do {
             var fun = l.match(TokenType.SYMBOL, groupingFunctions::containsKey).orElseThrow(failMatch("aggregate function expected"));
             l.match(TokenType.LP).orElseThrow(failMatch("left parenthesis expected"));
             var expr = parseExpression(l);            
             l.match(TokenType.RP).orElseThrow(failMatch("left parenthesis expected"));
             var alias = l.match(TokenType.SYMBOL, s -> aliasPattern.matcher(s).matches()).orElseThrow(failMatch("alias expected"));
-            aggregates.put(alias, list -> groupingFunctions.get(fun).apply(list.stream().map(expr)));
+            aggregates.add(new Operators.Aggregate(alias, expr, groupingFunctions.get(fun)));
         } while (l.match(TokenType.COMMA).isPresent());
 
         var groupings = new LinkedList<String>();
@@ -367,15 +375,12 @@ public class QueryParser {
             } while (l.match(TokenType.COMMA).isPresent());
         }
         
-        qc.addPartial(Operators.groupBy(
-                    qc.lastIndex(), 
-                    groupings, 
-                    list -> aggregates.entrySet().stream().collect(
-                        toMap(Entry::getKey, e -> e.getValue().apply(list)))));
+        qc.addPartial(Operators.groupBy(qc.lastIndex(), groupings, aggregates));
     }
 
-    private void parseSelect(QueryContext qc, Lexer l) {
+    private List<String> parseSelect(QueryContext qc, Lexer l) {
         l.match(TokenType.SYMBOL, "select"::equals).orElseThrow(failMatch("select expected"));
+        var columns = new AtomicReference<List<String>>();
 
         var projection =
             l.match(TokenType.STAR)
@@ -384,6 +389,7 @@ public class QueryParser {
                             .collect(toMap(e -> extractFieldName(e.getKey()), Entry::getValue)))) 
                 .orElseGet(() -> {
                     Map<String, QueryFunction> alias2expression = parseSelectProjection(l);
+                    columns.set(List.copyOf(alias2expression.keySet()));
                     return ma -> alias2expression.entrySet().stream()
                         .collect(toMap(
                                     Entry::getKey, 
@@ -393,6 +399,7 @@ public class QueryParser {
                 });
 
         qc.addPartial(Operators.project(qc.lastIndex(), projection));
+        return columns.get();
     }
 
     private Map<String, QueryFunction> parseSelectProjection(Lexer l) {
@@ -400,7 +407,7 @@ public class QueryParser {
         var aliasCnt = new AtomicInteger(0);
         do {
             var expr = parseExpression(l);
-            var alias = l.match(TokenType.SYMBOL, v -> aliasPattern.matcher(v).matches())
+            var alias = l.match(TokenType.SYMBOL, v -> aliasPattern.matcher(v).matches() && !KEYWORDS.contains(v))
                 .orElseGet(() -> {
                     String evalAlias = null;
                     try {
@@ -444,19 +451,13 @@ public class QueryParser {
             l.match(TokenType.RP).orElseThrow(failMatch("')' expected"));
         } else if (token.type == TokenType.SYMBOL) {
             if (token.getValue().equals("not")) {
-                var expr2 = parseExpression(l);
-                expr = ma -> convert2String(!convert2Bool(expr2.apply(ma)));
-            } else if (token.getValue().equals("false")) {
-                expr = __ -> convert2String(false);
-            } else if (token.getValue().equals("true")) {
-                expr = __ -> convert2String(true);
+                expr = Expressions.not(parseExpression(l));
             } else if (l.match(TokenType.LP).isPresent()) {
                 List<QueryFunction> args = new ArrayList<>();
                 if (l.match(TokenType.RP).isEmpty())
                     args = parseExpressionList(l);
                 l.match(TokenType.RP).orElseThrow(failMatch("')' expected"));
-                var argsCp = args;
-                expr = ma -> callBuiltin(token.getValue(), argsCp.stream().map(arg -> arg.apply(ma)).collect(Collectors.toList()));
+                expr = Expressions.call(token.getValue(), args);
             } else {
                 expr = resolveValue(token);
             }
@@ -468,15 +469,12 @@ public class QueryParser {
         if (l.match(TokenType.SYMBOL, "in"::equals).isPresent())
             expr = parseInOperator(l, expr);
         else if (l.match(TokenType.SYMBOL, "is"::equals).isPresent()) {
-            var expr2 = expr;
-            expr = (QueryFunction)l.match(TokenType.SYMBOL, "null"::equals)
-                .map(___ -> (QueryFunction)(ma -> convert2String(expr2.apply(ma) == null)))
-                .orElseGet(() -> {
-                    l.match(TokenType.SYMBOL, "not"::equals).orElseThrow(failMatch("'null' or 'not' expected"));
-                    l.match(TokenType.SYMBOL, "null"::equals).orElseThrow(failMatch("'null' expected"));
-
-                    return ma -> convert2String(expr2.apply(ma) != null);
-                });
+            var negated = l.match(TokenType.SYMBOL, "null"::equals).isEmpty();
+            if (negated) {
+                l.match(TokenType.SYMBOL, "not"::equals).orElseThrow(failMatch("'null' or 'not' expected"));
+                l.match(TokenType.SYMBOL, "null"::equals).orElseThrow(failMatch("'null' expected"));
+            }
+            expr = Expressions.isNull(expr, negated);
         }
 
         var ret = parseOperatorExpressionTail(l, expr);
@@ -489,35 +487,13 @@ public class QueryParser {
         List<QueryFunction> matches = parseExpressionList(l);
         l.match(TokenType.RP).orElseThrow(failMatch("closing parethesis expected"));
 
-        return (ma) -> {
-            var v = first.apply(ma);
-            return convert2String(
-                v != null
-                && matches.stream().map(a -> a.apply(ma)).anyMatch(v::equals));
-        };
+        return Expressions.in(first, matches);
     }
 
-    private static Map<Token, BiFunction<String, String, String>> OPERATORS = Map.of(
-        new Token(TokenType.EQ), (s1,s2) -> convert2String(s1 == null ? s2 == null : s1.equals(s2)),
-        new Token(TokenType.NE), (s1,s2) -> convert2String(s1 == null ? s2 != null : !s1.equals(s2)),
-        new Token(TokenType.MATCHES), (s1,s2) -> convert2String((s1 == null && s2 == null) || Pattern.compile(s2).matcher(s1).find()),
-        new Token(TokenType.CONCAT), (s1,s2) -> (s1 == null ? "" : s1) + (s2 == null ? "" : s2),
-        new Token(TokenType.GT), numComparator((n1,n2) -> n1 > n2),
-        new Token(TokenType.GE), numComparator((n1,n2) -> n1 >= n2),
-        new Token(TokenType.LT), numComparator((n1,n2) -> n1 < n2),
-        new Token(TokenType.LE), numComparator((n1,n2) -> n1 <= n2),
-        new Token(TokenType.SYMBOL, "and"), (s1,s2) -> convert2String(convert2Bool(s1) && convert2Bool(s2)),
-        new Token(TokenType.SYMBOL, "or"), (s1,s2) -> convert2String(convert2Bool(s1) && convert2Bool(s2))
-    );
-
     // expects lexer on operator
     private QueryFunction parseOperatorExpressionTail(Lexer l, QueryFunction first) {
-        return l.match(OPERATORS::containsKey)
-            .map(op -> {
-                QueryFunction qf = parseExpression(l);
-                var opFun = OPERATORS.get(op); 
-                return (QueryFunction)(ma -> opFun.apply(first.apply(ma), qf.apply(ma)));
-            })
+        return l.match(Expressions::isOperator)
+            .map(op -> Expressions.operator(op, first, parseExpression(l)))
             .orElse(first);
     }
 
@@ -530,17 +506,34 @@ public class QueryParser {
         return args;
     }
 
-    private void parseOrder(QueryContext qc, Lexer l) {
-        if (l.match(TokenType.SYMBOL, "order"::equals).isEmpty())
-            return;
-        l.match(TokenType.SYMBOL, "by"::equals).orElseThrow(failMatch("by expected"));
-
-        var sortExpr = parseExpressionList(l).stream().map(e -> Comparator.comparing(e, QUERY_VALUE_COMPARATOR)).collect(Collectors.toList());
-
-        var comparator = sortExpr.subList(1, sortExpr.size()).stream()
-            .map(o -> (Comparator<Map<String, String>>) o)
-            .reduce(sortExpr.get(0), (c1, c2) -> c1.thenComparing(c2));
+    /**
+     * Parses order by and limit; with both, only rows that can be in result
+     * are kept while sorting.
+     */
+    private void parseOrderAndLimit(QueryContext qc, Lexer l) {
+        List<Operators.Order> order = null;
+        if (l.match(TokenType.SYMBOL, "order"::equals).isPresent()) {
+            l.match(TokenType.SYMBOL, "by"::equals).orElseThrow(failMatch("by expected"));
+            order = new ArrayList<>();
+            do {
+                var expr = parseExpression(l);
+                var descending = l.match(TokenType.SYMBOL, "desc"::equals).isPresent();
+                if (!descending)
+                    l.match(TokenType.SYMBOL, "asc"::equals);
+                order.add(new Operators.Order(expr, descending));
+            } while (l.match(TokenType.COMMA).isPresent());
+        }
+        long offset = 0;
+        long count = -1;
+        if (l.match(TokenType.SYMBOL, "limit"::equals).isPresent()) {
+            count = Long.parseLong(l.match(TokenType.NUMBER).orElseThrow(failMatch("number expected after limit")));
+            if (l.match(TokenType.SYMBOL, "offset"::equals).isPresent())
+                offset = Long.parseLong(l.match(TokenType.NUMBER).orElseThrow(failMatch("number expected after offset")));
+        }
 
-        qc.addPartial(Operators.sort(qc.lastIndex(), comparator));
+        if (order != null)
+            qc.addPartial(count < 0 ? Operators.sort(qc.lastIndex(), order) : Operators.topN(qc.lastIndex(), order, offset, count));
+        else if (count >= 0)
+            qc.addPartial(Operators.limit(qc.lastIndex(), offset, count));
     }
 }
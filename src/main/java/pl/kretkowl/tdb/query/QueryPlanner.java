@@ -0,0 +1,270 @@
+package pl.kretkowl.tdb.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import lombok.Value;
+import lombok.experimental.UtilityClass;
+import pl.kretkowl.tdb.model.AttributeCondition;
+import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.query.QueryParser.QueryFunction;
+
+/**
+ * Decides how sources of query are read and joined, using conditions from WHERE.
+ */
+@UtilityClass
+class QueryPlanner {
+
+    /**
+     * Source from FROM clause. Scan is null for subquery, alias is null when
+     * not given, index is position of its rows in query context, join
+     * combines it with preceding sources (null for first one).
+     */
+    @Value
+    static class Source {
+        Operators.Scan scan;
+        String alias;
+        int index;
+        Operators.Join join;
+    }
+
+    /**
+     * Plans query and returns conjuncts of WHERE condition which still have
+     * to be checked row by row.
+     */
+    static List<QueryFunction> plan(DB db, List<Source> sources, QueryFunction where) {
+        var conjuncts = where.conjuncts();
+        return sources.size() == 1 ? pushDown(sources.get(0), conjuncts) : planJoins(db, sources, conjuncts);
+    }
+
+    /**
+     * Moves conjuncts that attribute index can answer into scan of the only source.
+     */
+    private static List<QueryFunction> pushDown(Source source, List<QueryFunction> conjuncts) {
+        if (source.getScan() == null)
+            return conjuncts;
+        var residual = new ArrayList<QueryFunction>();
+        for (var c : conjuncts) {
+            var condition = c.asCondition();
+            if (condition == null)
+                residual.add(c);
+            else
+                source.getScan().addCondition(condition.withAttribute(attribute(source, condition.getAttribute())));
+        }
+        return residual;
+    }
+
+    /**
+     * Rows of aliased source have every attribute twice, as is and prefixed with alias.
+     */
+    private static String attribute(Source source, String symbol) {
+        if (source.getAlias() != null && symbol.startsWith(source.getAlias() + "."))
+            return symbol.substring(source.getAlias().length() + 1);
+        return symbol;
+    }
+
+    /**
+     * Plans joins of sources. Conditions on attributes of single aliased
+     * source are also pushed into its scan, but stay in WHERE, as they are
+     * not true for rows where this source is empty. Equalities of attributes
+     * qualified with aliases of two sources become keys of hash join. When all
+     * sources are aliased, they are joined in order that gives least rows
+     * in intermediate results, as estimated from statistics of attributes.
+     * Unqualified attributes are not used, as they may come from any source.
+     */
+    private static List<QueryFunction> planJoins(DB db, List<Source> sources, List<QueryFunction> conjuncts) {
+        var residual = new ArrayList<QueryFunction>(conjuncts);
+        for (var c : conjuncts)
+            pushDownQualified(sources, c);
+        var rows = sources.stream().mapToDouble(s -> rows(db, s)).toArray();
+        var links = new ArrayList<Link>();
+        for (var c : conjuncts) {
+            var operands = c.equalityOperands();
+            if (operands == null)
+                continue;
+            int source1 = sourceOf(sources, operands.get(0).asSymbol());
+            int source2 = sourceOf(sources, operands.get(1).asSymbol());
+            if (source1 >= 0 && source2 >= 0 && source1 != source2)
+                links.add(new Link(c,
+                        source1, operands.get(0), distinct(db, sources.get(source1), operands.get(0).asSymbol(), rows[source1]),
+                        source2, operands.get(1), distinct(db, sources.get(source2), operands.get(1).asSymbol(), rows[source2])));
+        }
+        var order = IntStream.range(0, sources.size()).toArray();
+        if (sources.size() <= MAX_REORDERED_SOURCES && sources.stream().allMatch(s -> s.getAlias() != null))
+            order = cheapestOrder(rows, links);
+
+        var placed = new boolean[sources.size()];
+        placed[order[0]] = true;
+        sources.get(1).getJoin().setBase1(sources.get(order[0]).getIndex());
+        double joined = rows[order[0]];
+        for (int k = 1; k < order.length; k++) {
+            int t = order[k];
+            var join = sources.get(k).getJoin();
+            join.setBase2(sources.get(t).getIndex());
+            var shadowing = new ArrayList<String>();
+            for (int j = 0; j < k; j++)
+                if (order[j] > t)
+                    shadowing.add(sources.get(order[j]).getAlias());
+            join.setShadowingAliases(shadowing);
+            var link = link(t, placed, links);
+            if (link != null) {
+                var keys = link.getSource2() == t
+                    ? List.of(link.getOperand1(), link.getOperand2())
+                    : List.of(link.getOperand2(), link.getOperand1());
+                join.setKeys(keys.get(0), keys.get(1), joined < rows[t]);
+                residual.remove(link.getConjunct());
+            }
+            joined = joinedRows(joined, rows[t], link);
+            placed[t] = true;
+        }
+        return residual;
+    }
+
+    private static final int MAX_REORDERED_SOURCES = 8;
+    /**
+     * Guessed fraction of values matching regular expression.
+     */
+    private static final double MATCH_SELECTIVITY = 0.25;
+
+    /**
+     * Equality of attributes of two sources, with estimated number of distinct values of each.
+     */
+    @Value
+    private static class Link {
+        QueryFunction conjunct;
+        int source1;
+        QueryFunction operand1;
+        double distinct1;
+        int source2;
+        QueryFunction operand2;
+        double distinct2;
+
+        double selectivity() {
+            return 1 / Math.max(1, Math.max(distinct1, distinct2));
+        }
+    }
+
+    /**
+     * Pushes condition on attribute of single source into its scan. Attribute
+     * qualified with alias may also come from following subquery, which then
+     * shadows it, so there must be none.
+     */
+    private static void pushDownQualified(List<Source> sources, QueryFunction conjunct) {
+        var condition = conjunct.asCondition();
+        if (condition == null)
+            return;
+        int i = sourceOf(sources, condition.getAttribute());
+        if (i < 0 || sources.subList(i, sources.size()).stream().anyMatch(s -> s.getScan() == null))
+            return;
+        var source = sources.get(i);
+        source.getScan().addCondition(condition.withAttribute(attribute(source, condition.getAttribute())));
+    }
+
+    /**
+     * Estimates number of rows of source. Result of subquery is not
+     * estimated, it is assumed to be as big as db.
+     */
+    private static double rows(DB db, Source source) {
+        if (source.getScan() == null)
+            return db.entryCount();
+        double ret = source.getScan().size(db);
+        for (var c : source.getScan().getConditions())
+            ret *= selectivity(db, c);
+        return ret;
+    }
+
+    private static double selectivity(DB db, AttributeCondition condition) {
+        var statistics = db.statistics(condition.getAttribute());
+        double ret = (double) statistics.getEntries() / Math.max(1, db.entryCount());
+        if (condition.getValues() != null)
+            return ret * Math.min(1, (double) condition.getValues().size() / Math.max(1, statistics.getDistinctValues()));
+        if (!condition.isRange())
+            return ret * MATCH_SELECTIVITY;
+        if (statistics.getMin() == null)
+            return 0;
+        double min = statistics.getMin(), max = statistics.getMax();
+        double overlap = Math.min(max, condition.getTo()) - Math.max(min, condition.getFrom()) + 1;
+        return ret * Math.max(0, overlap) / (max - min + 1);
+    }
+
+    private static double distinct(DB db, Source source, String symbol, double rows) {
+        if (source.getScan() == null)
+            return rows;
+        return Math.min(rows, db.statistics(attribute(source, symbol)).getDistinctValues());
+    }
+
+    /**
+     * Returns most selective equality of source with one of placed ones, null if none.
+     */
+    private static Link link(int source, boolean[] placed, List<Link> links) {
+        Link ret = null;
+        for (var l : links) {
+            int other = l.getSource1() == source ? l.getSource2() : l.getSource2() == source ? l.getSource1() : -1;
+            if (other >= 0 && placed[other] && (ret == null || l.selectivity() < ret.selectivity()))
+                ret = l;
+        }
+        return ret;
+    }
+
+    private static double joinedRows(double rows1, double rows2, Link link) {
+        return link == null ? (rows1 + 1) * (rows2 + 1) - 1 : rows1 * rows2 * link.selectivity();
+    }
+
+    /**
+     * Returns order of sources with least sum of rows of joins, given order
+     * when no other is better.
+     */
+    private static int[] cheapestOrder(double[] rows, List<Link> links) {
+        var best = IntStream.range(0, rows.length).toArray();
+        var placed = new boolean[rows.length];
+        double cost = 0, joined = rows[0];
+        placed[0] = true;
+        for (int k = 1; k < rows.length; k++) {
+            joined = joinedRows(joined, rows[k], link(k, placed, links));
+            cost += joined;
+            placed[k] = true;
+        }
+        var bestCost = new double[] { cost };
+        search(new int[rows.length], 0, new boolean[rows.length], 0, 0, rows, links, best, bestCost);
+        return best;
+    }
+
+    private static void search(int[] order, int k, boolean[] placed, double joined, double cost,
+            double[] rows, List<Link> links, int[] best, double[] bestCost) {
+        if (cost >= bestCost[0])
+            return;
+        if (k == order.length) {
+            System.arraycopy(order, 0, best, 0, order.length);
+            bestCost[0] = cost;
+            return;
+        }
+        for (int t = 0; t < order.length; t++) {
+            if (placed[t])
+                continue;
+            var rowsAfter = k == 0 ? rows[t] : joinedRows(joined, rows[t], link(t, placed, links));
+            order[k] = t;
+            placed[t] = true;
+            search(order, k + 1, placed, rowsAfter, k == 0 ? 0 : cost + rowsAfter, rows, links, best, bestCost);
+            placed[t] = false;
+        }
+    }
+
+    /**
+     * Returns index of source which alias qualifies symbol, -1 if none or more than one.
+     */
+    private static int sourceOf(List<Source> sources, String symbol) {
+        if (symbol == null)
+            return -1;
+        int ret = -1;
+        for (int i = 0; i < sources.size(); i++) {
+            var alias = sources.get(i).getAlias();
+            if (alias != null && symbol.startsWith(alias + ".")) {
+                if (ret >= 0)
+                    return -1;
+                ret = i;
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,106 @@
+package pl.kretkowl.tdb.query;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Rows of partial result kept to be replayed. Rows with the same attributes
+ * share one sorted array of keys, so every row keeps only its values.
+ */
+final class RowBuffer {
+
+    private final Map<List<String>, String[]> keySets = new HashMap<>();
+    private final List<Row> rows = new ArrayList<>();
+    private long bytes;
+
+    /**
+     * Adds row and returns approximate number of bytes taken by all rows,
+     * counting values as if none was shared.
+     */
+    long add(Map<String, String> row) {
+        var rowKeys = row.keySet().toArray(new String[row.size()]);
+        Arrays.sort(rowKeys);
+        var keys = keySets.computeIfAbsent(Arrays.asList(rowKeys), __ -> rowKeys);
+        var values = new String[keys.length];
+        bytes += 48 + 8 * keys.length;
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = row.get(keys[i]);
+            if (values[i] != null)
+                bytes += 40 + 2 * values[i].length();
+        }
+        rows.add(new Row(keys, values));
+        return bytes;
+    }
+
+    Stream<Map<String, String>> stream() {
+        return rows.stream().map(r -> r);
+    }
+
+    private static final class Row extends AbstractMap<String, String> {
+        private final String[] keys;
+        private final String[] values;
+
+        Row(String[] keys, String[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && Arrays.binarySearch(keys, key) >= 0;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (!(key instanceof String))
+                return null;
+            int i = Arrays.binarySearch(keys, key);
+            return i < 0 ? null : values[i];
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        int i;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < keys.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (i == keys.length)
+                                throw new NoSuchElementException();
+                            var ret = new SimpleImmutableEntry<>(keys[i], values[i]);
+                            i++;
+                            return ret;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
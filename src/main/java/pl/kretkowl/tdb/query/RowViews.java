@@ -0,0 +1,122 @@
+package pl.kretkowl.tdb.query;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Rows made of other rows without copying their attributes: row of source
+ * seen under alias and pair of joined rows. Lookups go to underlying rows,
+ * attributes are copied only when view is iterated (e.g. by select *).
+ */
+@UtilityClass
+class RowViews {
+
+    /**
+     * Returns function showing row with every attribute available also as
+     * alias.attribute. Each symbol is resolved to attribute of source row
+     * once per query, not on every lookup.
+     */
+    static UnaryOperator<Map<String, String>> aliased(String alias) {
+        var prefix = alias + ".";
+        var sourceKeys = new ConcurrentHashMap<String, String>();
+        Function<String, String> resolve = k -> k.startsWith(prefix) ? k.substring(prefix.length()) : k;
+        return row -> new View() {
+
+            @Override
+            public String get(Object key) {
+                return key instanceof String ? row.get(sourceKeys.computeIfAbsent((String) key, resolve)) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return key instanceof String && row.containsKey(sourceKeys.computeIfAbsent((String) key, resolve));
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return row.isEmpty();
+            }
+
+            @Override
+            void copyTo(Map<String, String> target) {
+                row.forEach((k, v) -> {
+                    target.put(k, v);
+                    target.put(prefix + k, v);
+                });
+            }
+        };
+    }
+
+    /**
+     * Returns both rows as one, attributes of second one win, unless they
+     * are also attributes of shadowing aliases in first one.
+     */
+    static Map<String, String> joined(Map<String, String> first, Map<String, String> second, List<String> shadowingAliases) {
+        if (second.isEmpty())
+            return first;
+        if (first.isEmpty())
+            return second;
+        return new View() {
+
+            private boolean shadowed(String key) {
+                for (var a : shadowingAliases)
+                    if (first.containsKey(a + "." + key))
+                        return true;
+                return false;
+            }
+
+            @Override
+            public String get(Object key) {
+                if (!(key instanceof String))
+                    return null;
+                var v = second.get(key);
+                if ((v == null && !second.containsKey(key)) || (!shadowingAliases.isEmpty() && shadowed((String) key)))
+                    return first.get(key);
+                return v;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return first.containsKey(key) || second.containsKey(key);
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return false;
+            }
+
+            @Override
+            void copyTo(Map<String, String> target) {
+                target.putAll(first);
+                second.forEach((k, v) -> {
+                    if (shadowingAliases.isEmpty() || !shadowed(k))
+                        target.put(k, v);
+                });
+            }
+        };
+    }
+
+    private abstract static class View extends AbstractMap<String, String> {
+        private Map<String, String> copy;
+
+        abstract void copyTo(Map<String, String> target);
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            if (copy == null) {
+                var c = new HashMap<String, String>();
+                copyTo(c);
+                copy = c;
+            }
+            return copy.entrySet();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package pl.kretkowl.tdb.query;
+
+import static pl.kretkowl.tdb.query.Commons.*;
+
+/**
+ * Value prepared for comparing: parsed once, then compared as number when
+ * both values are numbers, else lexically. Null is greater than any value.
+ */
+final class SortKey implements Comparable<SortKey> {
+
+    private final String value;
+    private final boolean numeric;
+    private final long number;
+
+    private SortKey(String value) {
+        this.value = value;
+        var n = value == null ? null : convert2Num(value).orElse(null);
+        this.numeric = n != null;
+        this.number = numeric ? n : 0;
+    }
+
+    static SortKey of(String value) {
+        return new SortKey(value);
+    }
+
+    @Override
+    public int compareTo(SortKey o) {
+        if (value == null)
+            return o.value == null ? 0 : 1;
+        if (o.value == null)
+            return -1;
+        return numeric && o.numeric ? Long.compare(number, o.number) : value.compareTo(o.value);
+    }
+}
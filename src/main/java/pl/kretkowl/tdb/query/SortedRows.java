@@ -0,0 +1,247 @@
+package pl.kretkowl.tdb.query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+
+/**
+ * Sorts rows within memory limit. Rows are kept in memory until their
+ * estimated size exceeds limit, then they are sorted and written as run to
+ * temporary file; runs are merged while sorted rows are read. Run file holds
+ * for each row its input position, number of attributes and attributes as
+ * length prefixed UTF-8 strings (length -1 for null value). Run file is
+ * deleted when its rows were read, all of them on {@link #close()}.
+ */
+final class SortedRows {
+
+    /**
+     * Row with values of sort expressions computed once, and position in
+     * input, so equal rows keep their order.
+     */
+    @RequiredArgsConstructor
+    static final class Row {
+        final Map<String, String> row;
+        final SortKey[] keys;
+        final long position;
+    }
+
+    static Function<Map<String, String>, SortKey[]> keys(List<Operators.Order> order) {
+        return row -> {
+            var ret = new SortKey[order.size()];
+            for (int i = 0; i < ret.length; i++)
+                ret[i] = SortKey.of(order.get(i).getExpression().apply(row));
+            return ret;
+        };
+    }
+
+    static Comparator<Row> comparator(List<Operators.Order> order) {
+        return (r1, r2) -> {
+            for (int i = 0; i < r1.keys.length; i++) {
+                int c = r1.keys[i].compareTo(r2.keys[i]);
+                if (c != 0)
+                    return order.get(i).isDescending() ? -c : c;
+            }
+            return Long.compare(r1.position, r2.position);
+        };
+    }
+
+    private final Function<Map<String, String>, SortKey[]> keys;
+    private final Comparator<Row> comparator;
+    private final long memoryLimit;
+    /**
+     * Directory of run files, null for default temporary directory.
+     */
+    private final Path directory;
+    private final List<Row> rows = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private final List<RunReader> readers = new ArrayList<>();
+    private long bytes;
+    private long position;
+
+    SortedRows(List<Operators.Order> order, long memoryLimit, Path directory) {
+        this.keys = keys(order);
+        this.comparator = comparator(order);
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+    }
+
+    void add(Map<String, String> row) {
+        rows.add(new Row(row, keys.apply(row), position++));
+        bytes += 64 + 24 * rows.get(rows.size() - 1).keys.length;
+        for (var e : row.entrySet())
+            bytes += 80 + 2 * (e.getKey().length() + (e.getValue() == null ? 0 : e.getValue().length()));
+        if (bytes > memoryLimit)
+            spill();
+    }
+
+    @SneakyThrows
+    private void spill() {
+        rows.sort(comparator);
+        var run = directory == null ? Files.createTempFile("tdb-sort", ".run") : Files.createTempFile(directory, ".tdb-sort", ".run");
+        runs.add(run);
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (var r : rows) {
+                out.writeLong(r.position);
+                out.writeInt(r.row.size());
+                for (var e : r.row.entrySet()) {
+                    writeString(out, e.getKey());
+                    writeString(out, e.getValue());
+                }
+            }
+        }
+        rows.clear();
+        bytes = 0;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        var b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        var b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes run files, also those not read to the end.
+     */
+    @SneakyThrows
+    void close() {
+        for (var reader : readers)
+            reader.in.close();
+        for (var run : runs)
+            Files.deleteIfExists(run);
+    }
+
+    /**
+     * Returns rows added so far, sorted. Run files are deleted when all rows
+     * were read, or stream is closed.
+     */
+    Stream<Map<String, String>> sorted() {
+        rows.sort(comparator);
+        if (runs.isEmpty())
+            return rows.stream().map(r -> r.row).onClose(this::close);
+        var sources = new ArrayList<Iterator<Row>>();
+        sources.add(rows.iterator());
+        for (var run : runs) {
+            var reader = new RunReader(run);
+            readers.add(reader);
+            sources.add(reader);
+        }
+        var merge = new PriorityQueue<Source>((s1, s2) -> comparator.compare(s1.current, s2.current));
+        sources.forEach(s -> {
+            if (s.hasNext())
+                merge.add(new Source(s, s.next()));
+        });
+        var merged = new Iterator<Map<String, String>>() {
+
+            @Override
+            public boolean hasNext() {
+                return !merge.isEmpty();
+            }
+
+            @Override
+            public Map<String, String> next() {
+                var s = merge.poll();
+                if (s == null)
+                    throw new NoSuchElementException();
+                var ret = s.current.row;
+                if (s.rows.hasNext()) {
+                    s.current = s.rows.next();
+                    merge.add(s);
+                }
+                return ret;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, 0), false).onClose(this::close);
+    }
+
+    private static final class Source {
+        final Iterator<Row> rows;
+        Row current;
+
+        Source(Iterator<Row> rows, Row current) {
+            this.rows = rows;
+            this.current = current;
+        }
+    }
+
+    /**
+     * Reads rows of run file, deletes it after last one.
+     */
+    private final class RunReader implements Iterator<Row> {
+        private final Path run;
+        private final DataInputStream in;
+        private Row next;
+
+        @SneakyThrows
+        RunReader(Path run) {
+            this.run = run;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+            advance();
+        }
+
+        @SneakyThrows
+        private void advance() {
+            long position;
+            try {
+                position = in.readLong();
+            } catch (EOFException e) {
+                next = null;
+                in.close();
+                Files.deleteIfExists(run);
+                return;
+            }
+            int size = in.readInt();
+            var row = new LinkedHashMap<String, String>(size * 2);
+            for (int i = 0; i < size; i++)
+                row.put(readString(in), readString(in));
+            next = new Row(row, keys.apply(row), position);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Row next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            var ret = next;
+            advance();
+            return ret;
+        }
+    }
+}
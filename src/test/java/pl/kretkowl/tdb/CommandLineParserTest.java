@@ -1,5 +1,7 @@
 package pl.kretkowl.tdb;
 
+import java.util.List;
+
 import org.junit.Test;
 
 import pl.kretkowl.tdb.CommandLineOptions.Command;
@@ -76,6 +78,14 @@ public class CommandLineParserTest {
         assertThat(opt.getFile(), equalTo("file"));
     }
 
+    @Test
+    public void shouldParseIndexOfManyFiles() {
+        var opt = new CommandLineParser().parseCommandLine(new String[] { "index", "-j", "2", "a.md", "b.md", "-" });
+
+        assertThat(opt.getFiles(), equalTo(List.of("a.md", "b.md", "-")));
+        assertThat(opt.getParallelism(), equalTo(2));
+    }
+
     @Test
     public void shouldFailOnIndexWithoutFilename() {
         try {
@@ -85,4 +95,25 @@ public class CommandLineParserTest {
             // nop
         }
     }
+
+    @Test
+    public void shouldParseParallelism() {
+        var opt = new CommandLineParser().parseCommandLine(new String[] { "rebuild", "-j", "3" });
+
+        assertThat(opt.getCommand(), equalTo(Command.REBUILD));
+        assertThat(opt.getParallelism(), equalTo(3));
+        assertThat(new CommandLineParser().parseCommandLine(new String[] { "query", "-j", "2", "-q", "x" }).getParallelism(), equalTo(2));
+        assertThat(new CommandLineParser().parseCommandLine(new String[] { "query", "-m", "64", "-q", "x" }).getMemoryLimit(), equalTo(64));
+        assertThat(new CommandLineParser().parseCommandLine(new String[] { "serve" }).getCommand(), equalTo(Command.SERVE));
+    }
+
+    @Test
+    public void shouldFailOnInvalidParallelism() {
+        try {
+            new CommandLineParser().parseCommandLine(new String[] { "init", "-i", "-j", "0" });
+            fail();
+        } catch (RuntimeException e) {
+            // nop
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package pl.kretkowl.tdb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import pl.kretkowl.tdb.DocumentParser.UnboundEntry;
+
+/**
+ * Compares byte scanner of {@link DocumentParser} with line-by-line regex
+ * matching it replaced, on generated documents mixing prose, code and
+ * attributes. Not a test, run with main:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:&lt;lombok jar&gt; pl.kretkowl.tdb.DocumentParserBenchmark [documents]
+ * </pre>
+ */
+public class DocumentParserBenchmark {
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("^\\s+- ([a-zA-Z_][-a-zA-Z0-9_]*):");
+
+    /**
+     * Previous implementation: decodes every line and matches it with regex.
+     */
+    private static List<UnboundEntry> parseLines(String document) {
+        try {
+            var r = new BufferedReader(new StringReader(document));
+            var ret = new ArrayList<UnboundEntry>();
+            int currentLine = 0;
+            var ue = new UnboundEntry(0, new HashMap<>());
+            String line;
+            while ((line = r.readLine()) != null) {
+                currentLine++;
+                if (line.startsWith("#")) {
+                    if (!ue.getAttributes().isEmpty())
+                        ret.add(ue);
+                    ue = new UnboundEntry(currentLine, new HashMap<>());
+                    continue;
+                }
+                var m = ATTRIBUTE.matcher(line);
+                if (m.find())
+                    ue.getAttributes().put(m.group(1).toLowerCase(), line.substring(m.end()).trim());
+            }
+            if (!ue.getAttributes().isEmpty())
+                ret.add(ue);
+            return ret;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String document(int i) {
+        var sb = new StringBuilder("# Notes ").append(i).append("\n\n");
+        for (int s = 0; s < 8; s++) {
+            sb.append("## Section ").append(s).append("\n\n");
+            sb.append(" - name: task ").append(i).append('/').append(s).append('\n');
+            sb.append(" - status: ").append(s % 3 == 0 ? "done" : "open").append('\n');
+            sb.append(" - priority: ").append(s % 4).append("\n\n");
+            for (int p = 0; p < 6; p++)
+                sb.append("Some prose about zażółć gęślą jaźń, with - dashes: and colons, line ").append(p).append(".\n");
+            sb.append("\n```java\n");
+            for (int c = 0; c < 6; c++)
+                sb.append("    int x").append(c).append(" = a - b; // - not: attribute\n");
+            sb.append("```\n\n");
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        var texts = new ArrayList<String>();
+        var bytes = new ArrayList<ByteBuffer>();
+        long size = 0;
+        for (int i = 0; i < documents; i++) {
+            texts.add(document(i));
+            bytes.add(ByteBuffer.wrap(texts.get(i).getBytes(StandardCharsets.UTF_8)));
+            size += bytes.get(i).remaining();
+        }
+        var parser = new DocumentParser();
+        for (int i = 0; i < documents; i++)
+            if (!parseLines(texts.get(i)).equals(parser.parse(bytes.get(i).duplicate()).collect(Collectors.toList())))
+                throw new IllegalStateException("different entries of document " + i);
+        System.out.printf("%d documents, %.1f MB%n", documents, size / 1e6);
+
+        for (int round = 0; round < 5; round++) {
+            time("lines and regex", texts, DocumentParserBenchmark::parseLines);
+            time("byte scanner", bytes, b -> parser.parse(b.duplicate()).collect(Collectors.toList()));
+            System.out.println();
+        }
+    }
+
+    private static <T> void time(String name, List<T> documents, Function<T, List<UnboundEntry>> parse) {
+        long start = System.nanoTime();
+        long entries = 0;
+        for (var d : documents)
+            entries += parse.apply(d).size();
+        System.out.printf("%-20s %8.1f ms (%d entries)%n", name, (System.nanoTime() - start) / 1e6, entries);
+    }
+}
@@ -1,8 +1,14 @@
 package pl.kretkowl.tdb;
 
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+import pl.kretkowl.tdb.DocumentParser.UnboundEntry;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -34,4 +40,57 @@ public class DocumentParserTest {
         assertTrue(ret.get(2).getAttributes().get("a1").equals("v5"));
         assertTrue(ret.get(2).getAttributes().get("a3").equals("v6"));
     }
+
+    @Test
+    public void shouldReturnLinesOfHeaders() {
+        var doc =
+            " - a: 1\r\n" +
+            "text\r" +
+            "# Header\r\n" +
+            "\n" +
+            "\t- b: 2\n" +
+            "#\n" +
+            "#\n" +
+            "   - c: 3";
+        var ret = new DocumentParser()
+            .parse(new StringReader(doc))
+            .collect(Collectors.toList());
+
+        assertEquals(List.of(
+                new UnboundEntry(0, Map.of("a", "1")),
+                new UnboundEntry(3, Map.of("b", "2")),
+                new UnboundEntry(7, Map.of("c", "3"))), ret);
+    }
+
+    @Test
+    public void shouldReadOnlyAttributeLines() {
+        var doc =
+            " - Name_1:  żółw \t\n" +
+            "  - with-dash:\n" +
+            " - _x:a:b\n" +
+            "- top: no\n" +
+            " -nospace: no\n" +
+            " - 1digit: no\n" +
+            " - spaced : no\n" +
+            " - dot.ted: no\n" +
+            " * star: no\n" +
+            "    code - x: no\n";
+        var ret = new DocumentParser()
+            .parse(new StringReader(doc))
+            .collect(Collectors.toList());
+
+        assertEquals(List.of(new UnboundEntry(0, Map.of("name_1", "żółw", "with-dash", "", "_x", "a:b"))), ret);
+    }
+
+    @Test
+    public void shouldParseRemainingBytesOfBuffer() {
+        var bytes = "xx\n - a: ąę\n".getBytes(StandardCharsets.UTF_8);
+        var direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).position(3);
+
+        var ret = new DocumentParser()
+            .parse(direct)
+            .collect(Collectors.toList());
+
+        assertEquals(List.of(new UnboundEntry(0, Map.of("a", "ąę"))), ret);
+    }
 }
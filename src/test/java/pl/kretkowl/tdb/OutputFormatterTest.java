@@ -7,6 +7,7 @@ import static java.util.stream.Collectors.toList;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.stream.Stream;
@@ -70,6 +71,32 @@ public class OutputFormatterTest {
         }
     }
 
+    @Test
+    public void shouldGenerateCSVOfKnownColumns() {
+        Stream<Map<String, String>> data = Stream.of(
+                new TreeMap<>(Map.of("a", "A1", "b", "B1")),
+                new TreeMap<>(Map.of("b", "B2")));
+
+        synchronized (this) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(baos));
+            new OutputFormatter().prepareOutput(OutputType.CSV, List.of("b", "a"), data);
+
+            assertThat(baos.toString(), is("b;a\nB1;A1\nB2;null\n"));
+        }
+    }
+
+    @Test
+    public void shouldGenerateSameCSVOfEmptyResultWhetherColumnsAreKnownOrNot() {
+        ByteArrayOutputStream known = new ByteArrayOutputStream();
+        new OutputFormatter().prepareOutput(OutputType.CSV, List.of("b", "a"), Stream.empty(), new PrintStream(known));
+        ByteArrayOutputStream unknown = new ByteArrayOutputStream();
+        new OutputFormatter().prepareOutput(OutputType.CSV, null, Stream.empty(), new PrintStream(unknown));
+
+        assertThat(known.toString(), is("\n"));
+        assertThat(unknown.toString(), is("\n"));
+    }
+
     @Test
     public void shouldGenerateTable() {
         Stream<Map<String, String>> data = Stream.of(
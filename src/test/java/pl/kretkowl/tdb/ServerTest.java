@@ -0,0 +1,136 @@
+package pl.kretkowl.tdb;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.OptionalInt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.kretkowl.tdb.CommandLineOptions.Command;
+import pl.kretkowl.tdb.CommandLineOptions.OutputType;
+import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.query.QueryParser;
+
+public class ServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path root;
+    Server server;
+    Thread serverThread;
+
+    @Before
+    public void startServer() throws Exception {
+        root = folder.getRoot().toPath();
+        var sm = StoreManager.init(root);
+        Files.writeString(root.resolve("a.md"), " - name: a\n");
+        var dp = new DocumentProcessor(new DocumentParser());
+        dp.setRoot(root);
+        server = new Server(new Tdb(dp, new QueryParser(), new OutputFormatter()), sm);
+        serverThread = new Thread(server::run);
+        serverThread.start();
+        while (!Files.exists(root.resolve(StoreManager.SERVER_FILE)))
+            Thread.sleep(10);
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.stop();
+        serverThread.join();
+    }
+
+    private OptionalInt forward(CommandLineOptions clo, ByteArrayOutputStream out, ByteArrayOutputStream err) throws IOException {
+        return Server.forward(root, clo, new PrintStream(out), new PrintStream(err));
+    }
+
+    private String query(String query) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var code = forward(CommandLineOptions.builder().command(Command.QUERY).outputType(OutputType.CSV).query(query).build(),
+                out, new ByteArrayOutputStream());
+        assertThat(code, is(OptionalInt.of(0)));
+        return out.toString();
+    }
+
+    @Test
+    public void shouldIndexAndQueryResidentDb() throws Exception {
+        assertThat(query("from * select name"), is("\n"));
+
+        var code = forward(CommandLineOptions.builder().command(Command.INDEX).outputType(OutputType.CSV)
+                .file(root.resolve("a.md").toString()).build(), new ByteArrayOutputStream(), new ByteArrayOutputStream());
+
+        assertThat(code, is(OptionalInt.of(0)));
+        assertThat(query("from * select name"), is("name\na\n"));
+        assertThat(new StoreManager(root).load().findAll().count(), is(1l));
+    }
+
+    @Test
+    public void shouldReloadDbChangedByOtherProcess() throws Exception {
+        assertThat(query("from * select name"), is("\n"));
+
+        var dp = new DocumentProcessor(new DocumentParser());
+        dp.setRoot(root);
+        var db = new DB();
+        new Tdb(dp, new QueryParser(), new OutputFormatter()).rebuild(db, root);
+        new StoreManager(root).store(db);
+
+        assertThat(query("from * select name"), is("name\na\n"));
+    }
+
+    @Test
+    public void shouldReportFailedCommand() throws Exception {
+        var err = new ByteArrayOutputStream();
+
+        var code = forward(CommandLineOptions.builder().command(Command.QUERY).outputType(OutputType.CSV).query("select").build(),
+                new ByteArrayOutputStream(), err);
+
+        assertThat(code, is(OptionalInt.of(-2)));
+        assertThat(err.size() > 0, is(true));
+    }
+
+    @Test
+    public void shouldNotForwardWhenServerStopped() throws Exception {
+        server.stop();
+        serverThread.join();
+
+        assertThat(Files.exists(root.resolve(StoreManager.SERVER_FILE)), is(false));
+        assertThat(forward(CommandLineOptions.builder().command(Command.QUERY).outputType(OutputType.CSV).query("from * select name").build(),
+                    new ByteArrayOutputStream(), new ByteArrayOutputStream()),
+                is(OptionalInt.empty()));
+    }
+
+    @Test
+    public void shouldRejectOverlongStringBeforeReadingIt() throws Exception {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            var request = new DataOutputStream(socket.getOutputStream());
+            request.writeInt(Integer.MAX_VALUE);
+            request.flush();
+
+            assertThat(socket.getInputStream().read(), is(-1));
+        }
+        assertThat(query("from * select name"), is("\n"));
+    }
+
+    @Test
+    public void shouldSplitLongOutputIntoFrames() throws Exception {
+        var value = "x".repeat(3 * Server.MAX_FRAME_LENGTH);
+        Files.writeString(root.resolve("a.md"), " - name: " + value + "\n");
+        forward(CommandLineOptions.builder().command(Command.INDEX).outputType(OutputType.CSV)
+                .file(root.resolve("a.md").toString()).build(), new ByteArrayOutputStream(), new ByteArrayOutputStream());
+
+        assertThat(query("from * select name"), is("name\n" + value + "\n"));
+    }
+}
@@ -0,0 +1,163 @@
+package pl.kretkowl.tdb;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.model.DeltaLog.Change;
+import pl.kretkowl.tdb.model.Document;
+import pl.kretkowl.tdb.model.Entry;
+
+public class SharedDBTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    StoreManager sm;
+    SharedDB shared;
+    Document document = new Document("p", "d.md", null);
+
+    @Before
+    public void createRoot() {
+        sm = StoreManager.init(folder.getRoot().toPath());
+        shared = new SharedDB(sm);
+    }
+
+    private Change version(int version, int entries) {
+        var ret = new ArrayList<Entry>();
+        for (int i = 0; i < entries; i++)
+            ret.add(new Entry(document, i, Map.of("version", Integer.toString(version))));
+        return Change.replace(document, ret);
+    }
+
+    private void write(Change change) {
+        shared.update((db, version) -> Tdb.append(sm, db, version, List.of(change)));
+    }
+
+    @Test
+    public void snapshotShouldNotSeeLaterChanges() {
+        var before = shared.snapshot();
+
+        write(version(1, 2));
+
+        assertThat(before.findAll().count(), is(0l));
+        assertThat(shared.snapshot().findAll().count(), is(2l));
+        assertThat(shared.snapshot(), sameInstance(shared.snapshot()));
+    }
+
+    @Test
+    public void failedUpdateShouldNotBePublished() {
+        write(version(1, 2));
+        var before = shared.snapshot();
+
+        try {
+            shared.update((db, version) -> {
+                db.remove(document);
+                throw new IllegalStateException();
+            });
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertThat(shared.snapshot(), sameInstance(before));
+        assertThat(before.findAll().count(), is(2l));
+    }
+
+    @Test
+    public void shouldLoadAgainAfterIndexWasWritten() {
+        write(version(1, 2));
+        var before = shared.snapshot();
+
+        shared.update((db, version) -> sm.store(db, version));
+
+        assertThat(shared.snapshot(), not(sameInstance(before)));
+        assertThat(shared.snapshot().findAll().count(), is(2l));
+    }
+
+    @Test
+    public void shouldLoadAgainAfterCompaction() {
+        var changed = new DB[1];
+        shared.update((db, version) -> {
+            changed[0] = db;
+            return Tdb.append(sm, db, version, List.of(version(1, 2)));
+        });
+        assertThat(shared.snapshot(), sameInstance(changed[0]));
+
+        var big = new Document("p", "big.md", null);
+        var bigEntry = new Entry(big, 0, Map.of("version", "x".repeat((int) StoreManager.MIN_COMPACTION_LOG_SIZE)));
+        var stored = shared.update((db, version) -> {
+            changed[0] = db;
+            return Tdb.append(sm, db, version, List.of(Change.replace(big, List.of(bigEntry))));
+        });
+
+        assertThat(stored, not(is((Object) null)));
+        assertThat(sm.hasLog(), is(false));
+        assertThat(shared.snapshot(), not(sameInstance(changed[0])));
+        assertThat(shared.snapshot().findAll().count(), is(3l));
+    }
+
+    @Test
+    public void shouldSeeChangesOfOtherProcessAppendedBeforeUpdate() {
+        var other = new Document("p", "other.md", null);
+        shared.snapshot();
+
+        new StoreManager(sm.getRoot()).append(List.of(Change.replace(other, List.of(new Entry(other, 0, Map.of("version", "x"))))));
+        write(version(1, 2));
+
+        assertThat(shared.snapshot().findAll().count(), is(3l));
+    }
+
+    @Test
+    public void shouldNotStoreOverChangesOfOtherProcess() {
+        var other = new Document("p", "other.md", null);
+        shared.snapshot();
+
+        var stored = shared.update((db, version) -> {
+            new StoreManager(sm.getRoot()).append(List.of(Change.replace(other, List.of(new Entry(other, 0, Map.of("version", "x"))))));
+            return sm.store(db, version);
+        });
+
+        assertThat(stored, is((Object) null));
+        assertThat(shared.snapshot().findDocument(other).isPresent(), is(true));
+    }
+
+    @Test
+    public void readersShouldSeeOnlyWholeDocumentVersions() throws Exception {
+        write(version(0, 20));
+        var failure = new AtomicReference<String>();
+        var readers = new ArrayList<Thread>();
+        for (int r = 0; r < 2; r++) {
+            var reader = new Thread(() -> {
+                for (int i = 0; i < 300 && failure.get() == null; i++) {
+                    DB db = shared.snapshot();
+                    var versions = db.findAll().map(e -> e.getAttributes().get("version")).collect(Collectors.toList());
+                    if (versions.size() != 20 || Set.copyOf(versions).size() != 1)
+                        failure.set(versions.toString());
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int v = 1; v <= 100; v++)
+            write(version(v, 20));
+        for (var reader : readers)
+            reader.join();
+
+        assertThat(failure.get(), is((String) null));
+        assertThat(shared.snapshot().findByAttribute("version", "100").count(), is(20l));
+    }
+}
@@ -0,0 +1,170 @@
+package pl.kretkowl.tdb;
+
+import static java.util.stream.Collectors.toSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.kretkowl.tdb.model.DBTest;
+import pl.kretkowl.tdb.model.DeltaLog.Change;
+import pl.kretkowl.tdb.model.Document;
+import pl.kretkowl.tdb.model.Entry;
+
+public class StoreManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path root;
+    StoreManager sm;
+
+    @Before
+    public void prepareRoot() throws IOException {
+        root = folder.getRoot().toPath();
+        sm = StoreManager.init(root);
+        sm.store(DBTest.createDB());
+    }
+
+    private static Change replaceD1() {
+        var d1 = new Document("p1", "d1", "changed");
+        return Change.replace(d1, List.of(new Entry(d1, 0, Map.of("a1", "new"))));
+    }
+
+    @Test
+    public void shouldMergeLogWithBase() {
+        sm.append(List.of(replaceD1()));
+        sm.append(List.of(Change.remove(new Document("p2", "d2", null))));
+
+        var db = sm.load();
+
+        assertThat(db.findAll().count(), is(1l));
+        assertThat(db.findByAttribute("a1", "new").count(), is(1l));
+        assertThat(db.findDocument(new Document("p1", "d1", null)).get().getModification(), equalTo("changed"));
+    }
+
+    @Test
+    public void shouldFoldLogIntoBaseOnCompaction() {
+        sm.append(List.of(replaceD1()));
+        var expected = sm.load().findAll().collect(toSet());
+
+        sm.compact();
+
+        assertThat(Files.exists(root.resolve(StoreManager.LOG_FILE)), is(false));
+        assertThat(sm.load().findAll().collect(toSet()), equalTo(expected));
+    }
+
+    @Test
+    public void shouldLoadAgainWhenFilesChangedWhileLoading() {
+        sm.append(List.of(replaceD1()));
+        var other = new StoreManager(root);
+        var versions = new int[1];
+        var loading = new StoreManager(root) {
+            @Override
+            public Object version() {
+                if (++versions[0] == 2) {
+                    other.append(List.of(Change.remove(new Document("p2", "d2", null))));
+                    other.compact();
+                }
+                return super.version();
+            }
+        };
+
+        var db = loading.load();
+
+        assertThat(versions[0], is(4));
+        assertThat(db.findByAttribute("a1", "new").count(), is(1l));
+        assertThat(db.findDocument(new Document("p2", "d2", null)).isPresent(), is(false));
+    }
+
+    @Test
+    public void shouldIgnoreIncompleteRecord() throws IOException {
+        sm.append(List.of(replaceD1()));
+        Files.write(root.resolve(StoreManager.LOG_FILE), new byte[] { 20, 1, 2 }, StandardOpenOption.APPEND);
+
+        assertThat(sm.load().findByAttribute("a1", "new").count(), is(1l));
+    }
+
+    @Test
+    public void shouldCutOffIncompleteRecordBeforeAppending() throws IOException {
+        sm.append(List.of(replaceD1()));
+        Files.write(root.resolve(StoreManager.LOG_FILE), new byte[] { 20, 1, 2 }, StandardOpenOption.APPEND);
+
+        sm.append(List.of(Change.remove(new Document("p2", "d2", null))));
+
+        var db = sm.load();
+        assertThat(db.findByAttribute("a1", "new").count(), is(1l));
+        assertThat(db.findDocument(new Document("p2", "d2", null)).isPresent(), is(false));
+    }
+
+    @Test
+    public void shouldAppendAfterIncompleteHeader() throws IOException {
+        Files.write(root.resolve(StoreManager.LOG_FILE), new byte[] { 'T', 'D' });
+
+        assertThat(sm.load().findByAttribute("a1", "new").count(), is(0l));
+        sm.append(List.of(replaceD1()));
+
+        assertThat(sm.load().findByAttribute("a1", "new").count(), is(1l));
+    }
+
+    @Test
+    public void shouldRequestCompactionOfBigLog() {
+        assertThat(sm.needsCompaction(), is(false));
+        var d = new Document("p3", "d3", null);
+        var entry = new Entry(d, 0, Map.of("a", "x".repeat((int) StoreManager.MIN_COMPACTION_LOG_SIZE)));
+
+        sm.append(List.of(Change.replace(d, List.of(entry))));
+
+        assertThat(sm.needsCompaction(), is(true));
+    }
+
+    @Test
+    public void shouldNotStoreOverChangesOfOtherProcess() {
+        var other = new StoreManager(root);
+        var version = sm.version();
+        var db = sm.load();
+
+        other.append(List.of(replaceD1()));
+
+        assertThat(sm.store(db, version), is((Object) null));
+        assertThat(sm.load().findByAttribute("a1", "new").count(), is(1l));
+    }
+
+    @Test
+    public void appendShouldKeepChangesOfOtherProcessOnCompaction() {
+        var other = new StoreManager(root);
+        var version = sm.version();
+        var db = sm.load();
+        var d = new Document("p3", "d3", null);
+        var big = Change.replace(d, List.of(new Entry(d, 0, Map.of("a", "x".repeat((int) StoreManager.MIN_COMPACTION_LOG_SIZE)))));
+
+        other.append(List.of(replaceD1()));
+        var appended = Tdb.append(sm, db, version, List.of(big));
+
+        assertThat(appended, is((Object) null));
+        assertThat(Files.exists(root.resolve(StoreManager.LOG_FILE)), is(false));
+        var stored = new StoreManager(root).load();
+        assertThat(stored.findByAttribute("a1", "new").count(), is(1l));
+        assertThat(stored.findDocument(d).isPresent(), is(true));
+    }
+
+    @Test
+    public void appendShouldReturnVersionOfIndexMatchingDb() {
+        var db = sm.load();
+
+        var appended = Tdb.append(sm, db, sm.version(), List.of(replaceD1()));
+
+        assertThat(appended, equalTo(sm.version()));
+    }
+}
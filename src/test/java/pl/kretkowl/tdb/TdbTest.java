@@ -5,18 +5,33 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.never;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.mockito.Mockito.argThat;
 import static org.mockito.BDDMockito.given;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import pl.kretkowl.tdb.CommandLineOptions.Command;
 import pl.kretkowl.tdb.CommandLineOptions.OutputType;
 import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.model.DBCodec;
 import pl.kretkowl.tdb.query.QueryContext;
 import pl.kretkowl.tdb.query.QueryParser;
 
@@ -60,7 +75,8 @@ public class TdbTest {
             System.out.println("after run");
 
             verify(documentProcessor).processDocument(argThat(d -> d.getName().endsWith("test.md")));
-            verify(storeManager).store(any());;
+            verify(storeManager).append(argThat(changes -> changes.size() == 1));
+            verify(storeManager, never()).store(any());
         }
     }
 
@@ -90,7 +106,90 @@ public class TdbTest {
             tdb.run(CommandLineOptions.builder().command(Command.QUERY).query("abc").outputType(OutputType.CSV).build());
 
             verify(qc).execute();
-            verify(outputFormatter).prepareOutput(eq(OutputType.CSV), any());
+            verify(outputFormatter).prepareOutput(eq(OutputType.CSV), any(), any());
         }
     }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRebuildOnlyChangedDocuments() throws IOException {
+        var root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("sub"));
+        Files.writeString(root.resolve("a.md"), " - name: a\n");
+        Files.writeString(root.resolve("sub/b.md"), " - name: b\n");
+        Files.writeString(root.resolve("sub/c.md"), " - name: c\n");
+        var dp = new DocumentProcessor(new DocumentParser());
+        dp.setRoot(root);
+        var realTdb = new Tdb(dp, queryParser, outputFormatter);
+        var db = new DB();
+
+        var report = realTdb.rebuild(db, root);
+        assertThat(report.getAdded(), is(3));
+
+        Files.writeString(root.resolve("sub/b.md"), " - name: b2\n");
+        Files.setLastModifiedTime(root.resolve("sub/b.md"), FileTime.fromMillis(0));
+        Files.delete(root.resolve("sub/c.md"));
+        Files.writeString(root.resolve("d.md"), " - name: d\n");
+        report = realTdb.rebuild(db, root);
+
+        assertThat(report.getReused(), is(1));
+        assertThat(report.getReparsed(), is(1));
+        assertThat(report.getAdded(), is(1));
+        assertThat(report.getRemoved(), is(1));
+        assertThat(db.findAll().map(e -> e.getAttributes().get("name")).collect(Collectors.toSet()), equalTo(Set.of("a", "b2", "d")));
+    }
+
+    @Test
+    public void shouldIndexManyFilesAndRemoveGoneOnes() throws IOException {
+        var root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("sub"));
+        Files.writeString(root.resolve("a.md"), " - name: a\n");
+        Files.writeString(root.resolve("sub/b.md"), " - name: b\n");
+        Files.writeString(root.resolve("sub/c.md"), " - name: c\n");
+        var dp = new DocumentProcessor(new DocumentParser());
+        dp.setRoot(root);
+        var realTdb = new Tdb(dp, queryParser, outputFormatter);
+        var db = new DB();
+        realTdb.rebuild(db, root);
+
+        Files.writeString(root.resolve("sub/b.md"), " - name: b2\n");
+        Files.delete(root.resolve("sub/c.md"));
+        var changes = realTdb.indexFiles(
+                List.of(root.resolve("sub/b.md").toString(), root.resolve("sub/c.md").toString(), root.resolve("sub/../sub/b.md").toString()),
+                root, 2);
+        changes.forEach(c -> c.applyTo(db));
+
+        assertThat(changes.size(), is(2));
+        assertThat(db.findAll().map(e -> e.getAttributes().get("name")).collect(Collectors.toSet()), equalTo(Set.of("a", "b2")));
+    }
+
+    @Test
+    public void parallelRebuildShouldProduceSameIndexAsSerial() throws IOException {
+        var root = folder.getRoot().toPath();
+        for (int i = 0; i < 40; i++) {
+            var dir = root.resolve("dir" + (i % 4));
+            Files.createDirectories(dir);
+            var doc = new StringBuilder();
+            for (int j = 0; j < 5; j++)
+                doc.append("# E").append(j).append("\n - status: s").append((i + j) % 3).append("\n - name: n").append(i).append("\n\n");
+            Files.writeString(dir.resolve("doc" + i + ".md"), doc);
+        }
+        var dp = new DocumentProcessor(new DocumentParser());
+        dp.setRoot(root);
+        var realTdb = new Tdb(dp, queryParser, outputFormatter);
+
+        var serial = new DB();
+        realTdb.rebuild(serial, root, 1);
+        var parallel = new DB();
+        realTdb.rebuild(parallel, root, 4);
+
+        var serialBytes = new ByteArrayOutputStream();
+        DBCodec.write(serial, serialBytes);
+        var parallelBytes = new ByteArrayOutputStream();
+        DBCodec.write(parallel, parallelBytes);
+        assertThat(serial.findAll().count(), is(200l));
+        assertThat(Arrays.equals(parallelBytes.toByteArray(), serialBytes.toByteArray()), is(true));
+    }
 }
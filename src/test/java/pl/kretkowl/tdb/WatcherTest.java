@@ -0,0 +1,121 @@
+package pl.kretkowl.tdb;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.kretkowl.tdb.model.Document;
+import pl.kretkowl.tdb.model.Entry;
+import pl.kretkowl.tdb.query.QueryParser;
+
+public class WatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path root;
+    Watcher watcher;
+    Thread watcherThread;
+
+    @Before
+    public void startWatcher() throws Exception {
+        root = folder.getRoot().toPath();
+        var sm = StoreManager.init(root);
+        Files.writeString(root.resolve("a.md"), " - name: a\n");
+        Files.createDirectories(root.resolve(".hidden"));
+        Files.writeString(root.resolve(".hidden/h.md"), " - name: h\n");
+        var dp = new DocumentProcessor(new DocumentParser()) {
+            @Override
+            public List<Entry> processDocument(Document d) {
+                if (d.getName().startsWith("bad"))
+                    throw new UncheckedIOException(new IOException("cannot read " + d.getName()));
+                return super.processDocument(d);
+            }
+        };
+        dp.setRoot(root);
+        watcher = new Watcher(new Tdb(dp, new QueryParser(), new OutputFormatter()), sm);
+        watcherThread = new Thread(watcher::run);
+        watcherThread.start();
+    }
+
+    @After
+    public void stopWatcher() throws Exception {
+        watcher.stop();
+        watcherThread.join();
+    }
+
+    private Set<String> names() {
+        return new StoreManager(root).load().findAll().map(e -> e.getAttributes().get("name")).collect(Collectors.toSet());
+    }
+
+    private void awaitNames(Set<String> expected) throws InterruptedException {
+        for (int i = 0; i < 100 && !names().equals(expected); i++)
+            Thread.sleep(100);
+        assertThat(names(), equalTo(expected));
+    }
+
+    @Test
+    public void shouldIndexChangedFiles() throws Exception {
+        awaitNames(Set.of("a"));
+
+        Files.writeString(root.resolve("a.md"), " - name: a2\n");
+        Files.writeString(root.resolve("b.md"), " - name: b\n");
+
+        awaitNames(Set.of("a2", "b"));
+    }
+
+    @Test
+    public void shouldFollowCreatedAndRemovedDirectories() throws Exception {
+        awaitNames(Set.of("a"));
+
+        Files.createDirectories(root.resolve("sub/deeper"));
+        Files.writeString(root.resolve("sub/deeper/c.md"), " - name: c\n");
+        awaitNames(Set.of("a", "c"));
+
+        Files.writeString(root.resolve("sub/deeper/d.md"), " - name: d\n");
+        awaitNames(Set.of("a", "c", "d"));
+
+        Files.delete(root.resolve("sub/deeper/c.md"));
+        Files.delete(root.resolve("sub/deeper/d.md"));
+        Files.delete(root.resolve("sub/deeper"));
+        Files.delete(root.resolve("a.md"));
+        awaitNames(Set.of());
+    }
+
+    @Test
+    public void shouldKeepWatchingWhenFileCannotBeIndexed() throws Exception {
+        awaitNames(Set.of("a"));
+
+        Files.writeString(root.resolve("bad.md"), " - name: bad\n");
+        Files.writeString(root.resolve("b.md"), " - name: b\n");
+        awaitNames(Set.of("a", "b"));
+
+        Files.writeString(root.resolve("c.md"), " - name: c\n");
+        awaitNames(Set.of("a", "b", "c"));
+    }
+
+    @Test
+    public void shouldSkipHiddenDirectories() throws Exception {
+        awaitNames(Set.of("a"));
+
+        Files.createDirectories(root.resolve("sub/.hidden"));
+        Files.writeString(root.resolve("sub/.hidden/h2.md"), " - name: h2\n");
+        Files.writeString(root.resolve("sub/b.md"), " - name: b\n");
+        Files.writeString(root.resolve(".hidden/h.md"), " - name: h3\n");
+
+        awaitNames(Set.of("a", "b"));
+    }
+}
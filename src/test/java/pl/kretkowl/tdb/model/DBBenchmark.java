@@ -0,0 +1,79 @@
+package pl.kretkowl.tdb.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Measures cost of building, querying and modifying in-memory db.
+ * Not a test, run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=pl.kretkowl.tdb.model.DBBenchmark -Dexec.classpathScope=test
+ * </pre>
+ * Optional arguments: document count (default 20000), entries per document (default 5).
+ */
+public class DBBenchmark {
+
+    private static final String[] STATUSES = { "todo", "doing", "done", "cancelled" };
+
+    public static void main(String[] args) {
+        int documentCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int entriesPerDocument = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        var documents = new ArrayList<Document>();
+        var entries = new ArrayList<List<Entry>>();
+        for (int i = 0; i < documentCount; i++) {
+            var d = new Document("notes/" + (i % 100), "note" + i + ".md", null);
+            var docEntries = new ArrayList<Entry>();
+            for (int j = 0; j < entriesPerDocument; j++)
+                docEntries.add(new Entry(d, j * 10, Map.of(
+                        "status", STATUSES[(i + j) % STATUSES.length],
+                        "priority", Integer.toString(j % 3),
+                        "title", "task " + i + "/" + j)));
+            documents.add(d);
+            entries.add(docEntries);
+        }
+
+        for (int round = 0; round < 5; round++) {
+            var db = time("add", () -> {
+                var ret = new DB();
+                for (int i = 0; i < documentCount; i++)
+                    ret.add(documents.get(i), entries.get(i));
+                return ret;
+            });
+            time("find by attribute", () -> {
+                long count = 0;
+                for (int i = 0; i < 20; i++)
+                    for (var s : STATUSES)
+                        count += db.findByAttribute("status", s).filter(e -> e.getLine() >= 0).count();
+                return count;
+            });
+            time("find by document", () -> {
+                long count = 0;
+                for (var d : documents)
+                    count += db.findByDocument(d).filter(e -> e.getLine() >= 0).count();
+                return count;
+            });
+            time("replace every 10th document", () -> {
+                for (int i = 0; i < documentCount; i += 10) {
+                    db.remove(documents.get(i));
+                    db.add(documents.get(i), entries.get(i));
+                }
+                return db;
+            });
+            time("remove", () -> {
+                for (var d : documents)
+                    db.remove(d);
+                return db;
+            });
+            System.out.println();
+        }
+    }
+
+    private static <T> T time(String name, Supplier<T> action) {
+        long start = System.nanoTime();
+        var ret = action.get();
+        System.out.printf("%-30s %8.1f ms%n", name, (System.nanoTime() - start) / 1e6);
+        return ret;
+    }
+}
@@ -0,0 +1,193 @@
+package pl.kretkowl.tdb.model;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class DBCodecTest {
+
+    private static byte[] write(DB db) throws IOException {
+        var os = new ByteArrayOutputStream();
+        DBCodec.write(db, os);
+        return os.toByteArray();
+    }
+
+    private static DB roundTrip(DB db) throws IOException {
+        return DBCodec.read(ByteBuffer.wrap(write(db)));
+    }
+
+    @Test
+    public void shouldReadWhatWasWritten() throws IOException {
+        var db = DBTest.createDB();
+
+        var read = roundTrip(db);
+
+        assertThat(read.findAll().collect(toSet()), equalTo(db.findAll().collect(toSet())));
+        assertThat(read.findAllDocuments().collect(toSet()), equalTo(db.findAllDocuments().collect(toSet())));
+        assertThat(read.findByDocumentName("d1").count(), is(3l));
+        assertThat(read.findByAttribute("a3", "va3_2").count(), is(2l));
+        assertThat(read.findByAttribute("a1", "va1_4").count(), is(1l));
+    }
+
+    @Test
+    public void shouldKeepModificationAndUnicode() throws IOException {
+        var db = new DB();
+        var d1 = new Document("p", "d1", "2023-01-01T00:00:00Z");
+        var d2 = new Document("p", "d2", null);
+        db.add(d1, List.of(new Entry(d1, 1, Map.of("imię", "Łukasz"))));
+        db.add(d2, List.of(new Entry(d2, 1, Map.of("a", ""))));
+
+        var read = roundTrip(db);
+
+        assertThat(read.findDocument(d1).get().getModification(), equalTo("2023-01-01T00:00:00Z"));
+        assertThat(read.findDocument(d2).get().getModification(), is(nullValue()));
+        assertThat(read.findByAttribute("imię", "Łukasz").count(), is(1l));
+        assertThat(read.findByAttribute("a", "").count(), is(1l));
+    }
+
+    @Test
+    public void shouldShadowRemovedAndReplacedDocuments() throws IOException {
+        var read = roundTrip(DBTest.createDB());
+        var d1 = new Document("p1", "d1", "changed");
+
+        read.remove(new Document("p2", "d2", null));
+        read.remove(d1);
+        read.add(d1, List.of(new Entry(d1, 0, Map.of("a1", "va1_4"))));
+
+        assertThat(read.findAll().count(), is(1l));
+        assertThat(read.findAllDocuments().count(), is(1l));
+        assertThat(read.findDocument(d1).get().getModification(), equalTo("changed"));
+        assertThat(read.findByDocumentName("d2").count(), is(0l));
+        assertThat(read.findByAttribute("a1", "va1_1").count(), is(0l));
+        assertThat(read.findByAttribute("a1", "va1_4").count(), is(1l));
+        assertThat(roundTrip(read).findAll().collect(toSet()), equalTo(read.findAll().collect(toSet())));
+    }
+
+    @Test
+    public void shouldKeepBaseEntriesWhenAddingToDocument() throws IOException {
+        var read = roundTrip(DBTest.createDB());
+        var d1 = new Document("p1", "d1", null);
+
+        read.add(d1, List.of(new Entry(d1, 9, Map.of("a1", "va1_4"))));
+
+        assertThat(read.findByDocumentName("d1").count(), is(4l));
+        assertThat(read.findByAttribute("a1", Pattern.compile("va1_[14]")).count(), is(5l));
+    }
+
+    @Test
+    public void shouldFindByAttributesInBaseAndMemory() throws IOException {
+        var read = roundTrip(DBTest.createDB());
+        var d3 = new Document("p3", "d3", null);
+        read.add(d3, List.of(new Entry(d3, 0, Map.of("a1", "va1_1", "a2", "va2_9"))));
+        var conditions = List.of(
+                AttributeCondition.in("a1", Set.of("va1_1", "va1_4")),
+                AttributeCondition.matching("a2", v -> v.startsWith("va2")));
+
+        assertThat(read.findByAttributes(conditions, null).count(), is(3l));
+        assertThat(read.findByAttributes(conditions, d -> d.getName().equals("d2")).count(), is(1l));
+        read.remove(new Document("p2", "d2", null));
+        assertThat(read.findByAttributes(conditions, null).map(Entry::getLine).collect(toList()), equalTo(List.of(0, 0)));
+        assertThat(read.findByAttributes(List.of(AttributeCondition.in("x", Set.of("va1_1"))), null).count(), is(0l));
+    }
+
+    @Test
+    public void shouldFindByNumericRangeInBaseAndMemory() throws IOException {
+        var db = new DB();
+        var d1 = new Document("p", "d1", null);
+        var d2 = new Document("p", "d2", null);
+        db.add(d1, List.of(new Entry(d1, 0, Map.of("n", "1")), new Entry(d1, 1, Map.of("n", "5"))));
+        db.add(d2, List.of(new Entry(d2, 0, Map.of("n", "3"))));
+        var read = roundTrip(db);
+        var d3 = new Document("p", "d3", null);
+        var range = List.of(AttributeCondition.between("n", 2, 10));
+
+        assertThat(read.findByAttributes(range, null).count(), is(2l));
+        read.remove(d2);
+        read.add(d3, List.of(new Entry(d3, 0, Map.of("n", "4"))));
+        assertThat(read.findByAttributes(range, null).map(e -> e.getAttributes().get("n")).collect(toList()), equalTo(List.of("5", "4")));
+    }
+
+    @Test
+    public void shouldFindNothingForUnknownStrings() throws IOException {
+        var read = roundTrip(DBTest.createDB());
+
+        assertThat(read.findByDocumentName("x").count(), is(0l));
+        assertThat(read.findByAttribute("a1", "x").count(), is(0l));
+        assertThat(read.findByAttribute("x", "va1_1").count(), is(0l));
+        assertThat(read.findDocument(new Document("x", "d1", null)).isPresent(), is(false));
+    }
+
+    @Test
+    public void shouldKeepStatistics() throws IOException {
+        var db = DBTest.createDB();
+        var d = new Document("p", "d", null);
+        db.add(d, List.of(new Entry(d, 0, Map.of("n", "-3", "a1", "x")), new Entry(d, 1, Map.of("n", "12"))));
+
+        var read = roundTrip(db);
+
+        assertThat(read.entryCount(), is(8));
+        assertThat(read.entryCountByName("d1"), is(3));
+        assertThat(read.statistics("a1"), equalTo(db.statistics("a1")));
+        assertThat(read.statistics("n"), equalTo(new AttributeStatistics(2, 6, 2, -3l, 12l)));
+
+        read.remove(new Document("p1", "d1", null));
+        read.add(d, List.of(new Entry(d, 2, Map.of("a1", "x"))));
+        assertThat(read.entryCount(), is(6));
+        assertThat(read.statistics("a1").getEntries(), is(5));
+        assertThat(read.statistics("n").getEntries(), is(2));
+        read.remove(d);
+        assertThat(read.statistics("n"), equalTo(new AttributeStatistics(0, 3, 0, -3l, 12l)));
+    }
+
+    @Test
+    public void shouldCountValueOfIndexAndMemoryOnce() throws IOException {
+        var read = roundTrip(DBTest.createDB());
+        var d = new Document("p", "d", null);
+
+        read.add(d, List.of(new Entry(d, 0, Map.of("a1", "va1_1")), new Entry(d, 1, Map.of("a1", "va1_2"))));
+        assertThat(read.statistics("a1").getDistinctValues(), is(3));
+        read.add(d, List.of(new Entry(d, 0, Map.of("a1", "va1_1")), new Entry(d, 1, Map.of("a1", "new"))));
+        assertThat(read.statistics("a1").getDistinctValues(), is(4));
+    }
+
+    @Test
+    public void shouldWriteDeterministically() throws IOException {
+        assertThat(Arrays.equals(write(DBTest.createDB()), write(roundTrip(DBTest.createDB()))), is(true));
+    }
+
+    @Test
+    public void shouldRejectTruncatedFile() throws IOException {
+        var bytes = write(DBTest.createDB());
+        try {
+            DBCodec.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length / 2)));
+            fail();
+        } catch (IOException e) {
+            // nop
+        }
+    }
+
+    @Test
+    public void shouldRejectForeignFile() {
+        try {
+            DBCodec.read(ByteBuffer.wrap(new byte[] { (byte) 0xac, (byte) 0xed, 0, 5 }));
+            fail();
+        } catch (IOException e) {
+            // nop
+        }
+    }
+}
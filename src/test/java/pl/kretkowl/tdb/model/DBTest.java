@@ -65,4 +65,101 @@ public class DBTest {
         assertTrue(db.findByAttribute("a3", "va3_2").count() == 2);
         assertTrue(db.findByAttribute("a1", "va1_4").count() == 1);
     }
+
+    @Test
+    public void shouldShareAttributeStrings() {
+        DB db = createDB();
+
+        var entries = db.findByAttribute("a3", "va3_2").toArray(Entry[]::new);
+
+        assertSame(entries[0].getAttributes().get("a3"), entries[1].getAttributes().get("a3"));
+        assertEquals(Map.of("a1", "va1_1", "a3", "va3_2"), entries[0].getAttributes());
+        assertEquals(entries[0].getAttributes().hashCode(), Map.of("a1", "va1_1", "a3", "va3_2").hashCode());
+    }
+
+    @Test
+    public void shouldRemoveAttributeIndexes() {
+        DB db = createDB();
+
+        db.remove(new Document("p2", "d2", null));
+
+        assertTrue(db.findByAttribute("a1", "va1_4").count() == 0);
+        assertTrue(db.findByAttribute("a3", "va3_2").count() == 1);
+        assertEquals(3, db.entriesByAttribute.size());
+    }
+
+    @Test
+    public void shouldKeepIdenticalEntries() {
+        DB db = new DB();
+        Document d = new Document("p", "d", null);
+
+        db.add(d, List.of(new Entry(d, 0, Map.of("a", "v")), new Entry(d, 0, Map.of("a", "v"))));
+
+        assertEquals(2, db.findAll().count());
+        assertEquals(2, db.findByAttribute("a", "v").count());
+        db.remove(d);
+        assertEquals(0, db.findAll().count());
+        assertTrue(db.entriesByAttribute.isEmpty());
+    }
+
+    @Test
+    public void shouldFindByNumericRange() {
+        DB db = new DB();
+        Document d = new Document("p", "d", null);
+        db.add(d, List.of(
+                new Entry(d, 0, Map.of("n", "3")),
+                new Entry(d, 1, Map.of("n", "03")),
+                new Entry(d, 2, Map.of("n", "-1")),
+                new Entry(d, 3, Map.of("n", "x"))));
+
+        assertEquals(2, db.findByAttributes(List.of(AttributeCondition.between("n", 3, 3)), null).count());
+        assertEquals(3, db.findByAttributes(List.of(AttributeCondition.between("n", Long.MIN_VALUE, Long.MAX_VALUE)), null).count());
+        assertEquals(0, db.findByAttributes(List.of(AttributeCondition.between("n", 4, 2)), null).count());
+
+        Document d2 = new Document("p", "d2", null);
+        db.add(d2, List.of(new Entry(d2, 0, Map.of("n", "5"))));
+        assertEquals(1, db.findByAttributes(List.of(AttributeCondition.between("n", 4, 10)), null).count());
+        db.remove(d);
+        assertEquals(1, db.findByAttributes(List.of(AttributeCondition.between("n", Long.MIN_VALUE, Long.MAX_VALUE)), null).count());
+    }
+
+    @Test
+    public void shouldKeepStatistics() {
+        DB db = createDB();
+        Document d = new Document("p", "d", null);
+        db.add(d, List.of(
+                new Entry(d, 0, Map.of("n", "3", "a1", "va1_1")),
+                new Entry(d, 1, Map.of("n", "-1")),
+                new Entry(d, 2, Map.of("n", "x"))));
+
+        assertEquals(new AttributeStatistics(7, 2, 3, null, null), db.statistics("a1"));
+        assertEquals(new AttributeStatistics(3, 6, 3, -1l, 3l), db.statistics("n"));
+        assertEquals(new AttributeStatistics(0, 9, 0, null, null), db.statistics("none"));
+        assertEquals(3, db.entryCount(d));
+        assertEquals(3, db.entryCountByName("d1"));
+
+        db.remove(new Document("p1", "d1", null));
+        assertEquals(6, db.entryCount());
+        assertEquals(4, db.statistics("a1").getEntries());
+        assertEquals(0, db.entryCountByName("d1"));
+    }
+
+    @Test
+    public void copyShouldChangeIndependently() {
+        DB db = createDB();
+        Document d = new Document("p", "d", null);
+
+        DB copy = db.copy();
+        copy.remove(new Document("p1", "d1", null));
+        copy.add(d, List.of(new Entry(d, 0, Map.of("a1", "va1_1", "n", "5"))));
+
+        assertEquals(6, db.findAll().count());
+        assertEquals(3, db.findByAttribute("a1", "va1_1").count());
+        assertEquals(0, db.findByAttribute("n", "5").count());
+        assertEquals(new AttributeStatistics(6, 0, 3, null, null), db.statistics("a1"));
+        assertEquals(4, copy.findAll().count());
+        assertEquals(2, copy.findByAttribute("a1", "va1_1").count());
+        assertEquals(1, copy.findByAttributes(List.of(AttributeCondition.between("n", 4, 10)), null).count());
+        assertEquals(4, copy.statistics("a1").getEntries());
+    }
 }
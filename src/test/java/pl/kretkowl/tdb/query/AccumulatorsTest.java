@@ -0,0 +1,59 @@
+package pl.kretkowl.tdb.query;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import pl.kretkowl.tdb.query.Operators.Accumulator;
+
+public class AccumulatorsTest {
+
+    private static final Comparator<String> NULLS_LAST = Comparator.nullsLast(Comparator.naturalOrder());
+
+    private static Accumulator accumulate(Accumulator a, List<String> values) {
+        values.forEach(a::add);
+        return a;
+    }
+
+    @Test
+    public void countShouldCountDistinctValuesWithNull() {
+        var a = accumulate(Accumulators.count(), Arrays.asList("x", null, "y", "x", null));
+        a.addAll(accumulate(Accumulators.count(), Arrays.asList("y", "z")));
+
+        assertThat(a.result(), is("4"));
+    }
+
+    @Test
+    public void maxShouldPreferNullAndMinSkipIt() {
+        assertThat(accumulate(Accumulators.max(NULLS_LAST), Arrays.asList("b", null, "a")).result(), is(nullValue()));
+        assertThat(accumulate(Accumulators.min(NULLS_LAST), Arrays.asList(null, "b", "a")).result(), is("a"));
+        assertThat(accumulate(Accumulators.min(NULLS_LAST), Arrays.asList((String) null)).result(), is(nullValue()));
+        assertThat(Accumulators.max(NULLS_LAST).result(), is(nullValue()));
+    }
+
+    @Test
+    public void maxShouldKeepFirstOfEqualAndMerge() {
+        Comparator<String> byLength = Comparator.comparing(String::length);
+        var a = accumulate(Accumulators.max(byLength), List.of("aa", "bb", "c"));
+        a.addAll(accumulate(Accumulators.max(byLength), List.of("dd")));
+        a.addAll(Accumulators.max(byLength));
+
+        assertThat(a.result(), is("aa"));
+        a.addAll(accumulate(Accumulators.max(byLength), List.of("eee")));
+        assertThat(a.result(), is("eee"));
+    }
+
+    @Test
+    public void sumShouldTreatNotNumbersAsZero() {
+        var a = accumulate(Accumulators.sum(), Arrays.asList("3", "x", null, "-1"));
+        a.addAll(accumulate(Accumulators.sum(), List.of("10")));
+
+        assertThat(a.result(), is("12"));
+    }
+}
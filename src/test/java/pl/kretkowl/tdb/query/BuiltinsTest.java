@@ -5,6 +5,7 @@ import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 import java.util.Arrays;
+import java.util.function.IntFunction;
 
 import org.junit.Test;
 
@@ -30,6 +31,18 @@ public class BuiltinsTest {
         assertThat(Builtins.dispatch("nullif", Arrays.asList("f", "abc")), is("abc"));
     }
 
+    @Test
+    public void nvlAndNullifShouldNotComputeUnneededArguments() {
+        IntFunction<String> firstOnly = i -> {
+            if (i > 0)
+                throw new AssertionError("argument " + i + " computed");
+            return "t";
+        };
+
+        assertThat(Builtins.dispatch("nvl", 3, firstOnly), is("t"));
+        assertThat(Builtins.dispatch("nullif", 2, firstOnly), is(nullValue()));
+    }
+
     @Test
     public void lengthShouldReturnLength() {
         assertThat(Builtins.dispatch("length", Arrays.asList("abc")), is("3"));
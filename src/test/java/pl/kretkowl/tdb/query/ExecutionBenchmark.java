@@ -0,0 +1,65 @@
+package pl.kretkowl.tdb.query;
+
+import java.util.HashSet;
+import java.util.Map;
+
+import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.model.Document;
+import pl.kretkowl.tdb.model.Entry;
+
+/**
+ * Compares query throughput in stream and batch mode, on generated in-memory
+ * database. Not a test, run with main:
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:&lt;lombok jar&gt; pl.kretkowl.tdb.query.ExecutionBenchmark [entries]
+ * </pre>
+ */
+public class ExecutionBenchmark {
+
+    private static final String[] QUERIES = {
+        "from * where (length(name) > 11) and (status ~ 'o$') select name, priority",
+        "from * t where t.priority >= 2 accumulate count(t.name) c, sum(t.priority) s grouping by status select status, c, s",
+        "from * where status = 'todo' select name n, priority p order by p, n",
+        "from * where status = 'todo' select name n, priority p order by p desc, n limit 10",
+        "from * where length(name) > 11 select name limit 10",
+    };
+
+    /**
+     * Reads every row, so no stage is skipped (count() alone may not run them).
+     */
+    private static long consume(QueryContext qc) {
+        return qc.execute().filter(m -> !m.isEmpty()).count();
+    }
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        var db = new DB();
+        for (int d = 0; d < entries / 100; d++) {
+            var doc = new Document("doc" + d, "doc" + d, null);
+            var docEntries = new HashSet<Entry>();
+            for (int i = 0; i < 100; i++)
+                docEntries.add(new Entry(doc, i, Map.of(
+                    "name", "task " + d + "-" + i,
+                    "status", i % 3 == 0 ? "done" : i % 3 == 1 ? "todo" : "doing",
+                    "priority", Integer.toString(i % 5))));
+            db.add(doc, docEntries);
+        }
+        for (var query : QUERIES) {
+            System.out.println(query);
+            for (var batchMode : new boolean[] { false, true }) {
+                var qc = new QueryParser().parseQuery(db, query);
+                qc.setBatchMode(batchMode);
+                for (int i = 0; i < 5; i++) // warm up
+                    consume(qc);
+                int runs = 10;
+                long rows = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < runs; i++)
+                    rows += consume(qc);
+                double ms = (System.nanoTime() - start) / 1e6 / runs;
+                System.out.printf("  %-6s %8.1f ms/query %8d rows%n", batchMode ? "batch" : "stream", ms, rows / runs);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package pl.kretkowl.tdb.query;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import pl.kretkowl.tdb.query.QueryParser.Token;
+import pl.kretkowl.tdb.query.QueryParser.TokenType;
+
+public class ExpressionsTest {
+
+    private static final QueryParser.QueryFunction A = Expressions.symbol("t.a");
+
+    private static QueryParser.QueryFunction c(String value) {
+        return Expressions.constant(value);
+    }
+
+    @Test
+    public void shouldFoldConstants() {
+        var concat = Expressions.operator(new Token(TokenType.CONCAT), c("a"), c("b"));
+        var length = Expressions.call("length", List.of(concat));
+        var compare = Expressions.operator(new Token(TokenType.LT), length, c("3"));
+
+        assertThat(compare.isConstant(), is(true));
+        assertThat(compare.apply(null), is("t"));
+        assertThat(Expressions.not(compare).isConstant(), is(true));
+        assertThat(Expressions.isNull(c(null), true).apply(null), is("f"));
+        assertThat(Expressions.in(c("x"), List.of(c("y"), c("x"))).apply(null), is("t"));
+    }
+
+    @Test
+    public void shouldShortCircuitLogicalOperators() {
+        QueryParser.QueryFunction failing = ma -> {
+            throw new AssertionError("right side evaluated");
+        };
+        var and = Expressions.operator(new Token(TokenType.SYMBOL, "and"), A, failing);
+        var or = Expressions.operator(new Token(TokenType.SYMBOL, "or"), A, failing);
+
+        assertThat(and.apply(Map.of("t.a", "f")), is("f"));
+        assertThat(and.apply(Map.of()), is("f"));
+        assertThat(or.apply(Map.of("t.a", "x")), is("t"));
+        assertThat(Expressions.operator(new Token(TokenType.SYMBOL, "or"), A, c("t")).apply(Map.of("t.a", "f")), is("t"));
+        assertThat(Expressions.operator(new Token(TokenType.SYMBOL, "and"), c("f"), failing).isConstant(), is(true));
+        assertThat(Expressions.operator(new Token(TokenType.SYMBOL, "or"), c("t"), failing).apply(null), is("t"));
+        assertThat(Expressions.operator(new Token(TokenType.SYMBOL, "or"), c("f"), c("f")).apply(null), is("f"));
+    }
+
+    @Test
+    public void shouldLeaveFailingConstantsToQueryRun() {
+        var substr = Expressions.call("substr", List.of(c("abc"), c("x")));
+
+        assertThat(substr.isConstant(), is(false));
+        try {
+            substr.apply(Map.of());
+            fail();
+        } catch (RuntimeException e) {
+            // nop
+        }
+    }
+
+    @Test
+    public void shouldMatchPrecompiledPattern() {
+        var matches = Expressions.operator(new Token(TokenType.MATCHES), A, c("b+$"));
+
+        assertThat(matches.apply(Map.of("t.a", "abb")), is("t"));
+        assertThat(matches.apply(Map.of("t.a", "bba")), is("f"));
+        assertThat(matches.apply(Map.of()), is("f"));
+        assertThat(matches.asCondition().getPredicate().test("ab"), is(true));
+    }
+
+    @Test
+    public void shouldCompareWithConstantOnEitherSide() {
+        var gt = Expressions.operator(new Token(TokenType.GT), A, c("5"));
+        var swapped = Expressions.operator(new Token(TokenType.GT), c("5"), A);
+
+        assertThat(gt.apply(Map.of("t.a", "6")), is("t"));
+        assertThat(swapped.apply(Map.of("t.a", "6")), is("f"));
+        assertThat(swapped.apply(Map.of("t.a", "4")), is("t"));
+        assertThat(gt.apply(Map.of("t.a", "x")), is(nullValue()));
+        assertThat(Expressions.operator(new Token(TokenType.GT), A, c("x")).apply(Map.of("t.a", "6")), is(nullValue()));
+    }
+
+    @Test
+    public void shouldLookUpConstantInList() {
+        var in = Expressions.in(A, List.of(c("x"), c(null), c("y")));
+        var inRow = Expressions.in(A, List.of(c("x"), Expressions.symbol("b")));
+
+        assertThat(in.apply(Map.of("t.a", "y")), is("t"));
+        assertThat(in.apply(Map.of("t.a", "z")), is("f"));
+        assertThat(in.apply(Map.of()), is("f"));
+        assertThat(inRow.apply(Map.of("t.a", "z", "b", "z")), is("t"));
+        assertThat(inRow.apply(Map.of("t.a", "z")), is("f"));
+    }
+}
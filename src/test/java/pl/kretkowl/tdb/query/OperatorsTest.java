@@ -9,7 +9,11 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
@@ -85,7 +89,7 @@ public class OperatorsTest {
     public void orderShouldRearrangeItems() {
         var qc = createContext();
         qc.addPartial(Operators.selectAll());
-        var ret = Operators.sort(0, Comparator.<Map<String,String>, String>comparing(m->m.get("c"), nullsLast(naturalOrder()))).select(qc).collect(toList());
+        var ret = Operators.sort(0, List.of(new Operators.Order(m -> m.get("c"), false))).select(qc).collect(toList());
 
         assertThat("size", ret.size(), is(3));
         assertThat(ret.get(0).get("c"), equalTo("C1"));
@@ -97,7 +101,9 @@ public class OperatorsTest {
     public void groupByShouldAllowForCountingInGroups() {
         var qc = createContext();
         qc.addPartial(Operators.selectAll());
-        var ret = Operators.groupBy(0, List.of("a"), lma->Map.of("count", Integer.toString(lma.size()))).select(qc).collect(toList());
+        var ret = Operators.groupBy(0, List.of("a"), List.of(new Operators.Aggregate("count", m -> "1", Accumulators::sum))).select(qc)
+            .sorted(comparing(m -> m.get("a")))
+            .collect(toList());
 
         assertThat("size", ret.size(), is(2));
         var el = ret.get(0);
@@ -118,6 +124,39 @@ public class OperatorsTest {
         assertThat("size", ret.size(), is(5));
     }
 
+    @Test
+    public void hashJoinShouldMatchFilteredCartesian() {
+        var qc = new QueryContext(new DB());
+        qc.addPartial(ctx -> Stream.of(Map.of("a", "1"), Map.of("a", "2"), Map.of("b", "x")));
+        qc.addPartial(ctx -> Stream.of(Map.of("c", "1"), Map.of("c", "1", "d", "y"), Map.of("d", "z")));
+        var filtered = Operators.cartesian(0, 1).select(qc)
+            .filter(m -> Objects.equals(m.get("a"), m.get("c")))
+            .map(Object::toString).sorted().collect(toList());
+
+        for (var buildFirst : List.of(true, false)) {
+            var join = Operators.cartesian(0, 1);
+            join.setKeys(m -> m.get("a"), m -> m.get("c"), buildFirst);
+            var joined = join.select(qc).map(Object::toString).sorted().collect(toList());
+
+            assertThat(joined, equalTo(filtered));
+            assertThat("size", joined.size(), is(5));
+        }
+    }
+
+    @Test
+    public void reorderedJoinShouldKeepAttributesOfLaterSource() {
+        var qc = new QueryContext(new DB());
+        qc.addPartial(ctx -> Stream.of(Map.of("a", "1", "s.a", "1"), Map.of("b", "x", "s.b", "x")));
+        qc.addPartial(ctx -> Stream.of(Map.of("a", "2", "t.a", "2")));
+        var join = Operators.cartesian(1, 0);
+        join.setShadowingAliases(List.of("t"));
+
+        var reordered = join.select(qc).map(TreeMap::new).map(Object::toString).sorted().collect(toList());
+        var listed = Operators.cartesian(0, 1).select(qc).map(TreeMap::new).map(Object::toString).sorted().collect(toList());
+
+        assertThat(reordered, equalTo(listed));
+    }
+
     @Test
     public void distinctShouldDiscardCopies() {
         var qc = createContext();
@@ -128,4 +167,43 @@ public class OperatorsTest {
 
         assertThat("size", ret.size(), is(1));
     }
+
+    @Test
+    public void batchModeShouldGiveSameRowsAsStreams() {
+        var db = new DB();
+        var doc = new Document("path", "name", null);
+        db.add(doc, IntStream.range(0, 3 * Batch.CAPACITY + 7)
+                .mapToObj(i -> new Entry(doc, i, Map.of("i", Integer.toString(i), "g", Integer.toString(i % 7))))
+                .collect(toSet()));
+        var qc = new QueryContext(db);
+        qc.addPartial(Operators.selectAll());
+        qc.addPartial(Operators.filter(0, m -> m.get("i").endsWith("3")));
+        qc.addPartial(Operators.project(1, m -> Map.of("g", m.get("g"), "i", m.get("i").substring(1))));
+        qc.addPartial(Operators.distinct(2));
+        qc.addPartial(Operators.groupBy(3, List.of("g"), List.of(new Operators.Aggregate("n", m -> "1", Accumulators::sum))));
+        qc.addPartial(Operators.sort(4, List.of(new Operators.Order(m -> m.get("g"), false))));
+
+        qc.setBatchMode(false);
+        var streamed = qc.execute().collect(toList());
+        qc.setBatchMode(true);
+        var batched = qc.execute().collect(toList());
+
+        assertThat(streamed.size(), is(7));
+        assertThat(batched, equalTo(streamed));
+    }
+
+    @Test
+    public void topNShouldKeepOrderOfEqualRowsAsSort() {
+        var qc = new QueryContext(new DB());
+        qc.addPartial(ctx -> IntStream.range(0, 100).mapToObj(i -> Map.of("i", Integer.toString(i), "k", Integer.toString(i % 10))));
+        var order = List.of(new Operators.Order(m -> m.get("k"), true));
+        qc.addPartial(Operators.sort(0, order));
+        qc.addPartial(Operators.topN(0, order, 5, 12));
+
+        var sorted = qc.execute(1).collect(toList());
+        var top = qc.execute(2).collect(toList());
+
+        assertThat(top, equalTo(sorted.subList(5, 17)));
+        assertThat(top.get(0).get("i"), equalTo("59"));
+    }
 }
@@ -0,0 +1,155 @@
+package pl.kretkowl.tdb.query;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.model.Document;
+import pl.kretkowl.tdb.model.Entry;
+
+public class QueryContextTest {
+
+    private static void addCountedRows(QueryContext qc, AtomicInteger selects) {
+        qc.addPartial(ctx -> {
+            selects.incrementAndGet();
+            return IntStream.range(0, 10).mapToObj(i -> {
+                var ret = new HashMap<String, String>();
+                ret.put("i", Integer.toString(i));
+                ret.put(i % 2 == 0 ? "even" : "odd", null);
+                return ret;
+            });
+        });
+    }
+
+    @Test
+    public void shouldComputeNestedLoopRightSideOnce() {
+        var qc = new QueryContext(new DB());
+        var selects = new AtomicInteger();
+        qc.addPartial(Operators.selectAll());
+        addCountedRows(qc, selects);
+        qc.addPartial(ctx -> IntStream.range(0, 5).mapToObj(i -> Map.of("j", Integer.toString(i))));
+        qc.addPartial(Operators.cartesian(2, 1));
+
+        assertThat(qc.execute().count(), is(65l));
+        assertThat(selects.get(), is(1));
+        assertThat(qc.execute().count(), is(65l));
+        assertThat(selects.get(), is(2));
+    }
+
+    @Test
+    public void shouldReplayRowsReadAgain() {
+        var qc = new QueryContext(new DB());
+        var selects = new AtomicInteger();
+        addCountedRows(qc, selects);
+
+        var first = qc.execute(0).collect(toList());
+        var second = qc.execute(0).collect(toList());
+        var third = qc.execute(0).collect(toList());
+
+        assertThat(selects.get(), is(2));
+        assertThat(second, equalTo(first));
+        assertThat(third, equalTo(first));
+        assertThat(third.get(0).containsKey("even"), is(true));
+        assertThat(third.get(0).containsKey("odd"), is(false));
+    }
+
+    @Test
+    public void shouldBufferSharedRowsOnceForConcurrentReaders() throws Exception {
+        var qc = new QueryContext(new DB());
+        var selects = new AtomicInteger();
+        qc.addPartial(ctx -> {
+            selects.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return IntStream.range(0, 10).mapToObj(i -> Map.of("i", Integer.toString(i)));
+        });
+        var counts = new ConcurrentLinkedQueue<Long>();
+        var readers = new ArrayList<Thread>();
+        for (int r = 0; r < 4; r++) {
+            var reader = new Thread(() -> counts.add(qc.executeShared(0).count()));
+            reader.start();
+            readers.add(reader);
+        }
+        for (var reader : readers)
+            reader.join();
+
+        assertThat(selects.get(), is(1));
+        assertThat(List.copyOf(counts), equalTo(List.of(10l, 10l, 10l, 10l)));
+    }
+
+    @Test
+    public void shouldComputeOnlyRowsReadInBatchMode() {
+        var db = new DB();
+        for (int d = 0; d < 100; d++) {
+            var doc = new Document("p", "d" + d, null);
+            var entries = new ArrayList<Entry>();
+            for (int i = 0; i < 100; i++)
+                entries.add(new Entry(doc, i, Map.of("i", Integer.toString(i))));
+            db.add(doc, entries);
+        }
+        var qc = new QueryContext(db);
+        var tested = new AtomicInteger();
+        qc.addPartial(Operators.selectAll());
+        qc.addPartial(Operators.filter(0, m -> tested.incrementAndGet() > 0));
+
+        try (var rows = qc.execute()) {
+            assertThat(rows.findFirst().isPresent(), is(true));
+        }
+        assertThat(tested.get() < 100, is(true));
+
+        tested.set(0);
+        try (var rows = qc.execute()) {
+            assertThat(rows.count(), is(10_000l));
+        }
+        assertThat(tested.get(), is(10_000));
+    }
+
+    @Test
+    public void shouldComputeAgainOverBufferLimit() {
+        var qc = new QueryContext(new DB(), 500);
+        var selects = new AtomicInteger();
+        addCountedRows(qc, selects);
+
+        var first = qc.executeShared(0).collect(toList());
+        var second = qc.executeShared(0).collect(toList());
+
+        assertThat(selects.get(), is(2));
+        assertThat(second, equalTo(first));
+        assertThat(first.size(), is(10));
+    }
+
+    @Test
+    public void shouldGiveSameResultInParallel() {
+        var db = new DB();
+        var doc = new Document("path", "name", null);
+        db.add(doc, IntStream.range(0, QueryContext.PARALLEL_THRESHOLD + 10)
+                .mapToObj(i -> new Entry(doc, i, Map.of("i", Integer.toString(i), "g", Integer.toString(i % 13))))
+                .collect(toSet()));
+        var query = "from * where i ~ '7$' accumulate count(i) c, max(i) m grouping by g select g, c, m mx order by c, g";
+
+        var sequential = new QueryParser().parseQuery(db, query).execute().collect(toList());
+        var qc = new QueryParser().parseQuery(db, query);
+        qc.setParallelism(3);
+        var parallel = qc.execute().collect(toList());
+
+        assertThat(qc.isParallel(), is(true));
+        assertThat(parallel, equalTo(sequential));
+        assertThat(parallel.size(), is(13));
+    }
+}
@@ -5,11 +5,15 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.fail;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -263,6 +267,33 @@ public class QueryParserTest {
         assertThat(r1.get((1)), equalTo(r2.get(0)));
     }
 
+    @Test
+    public void shouldLimitSortedDescending() {
+        var db = prepare2EntryDB();
+        addOneRecordDocument(db, new Document("path3", "name", null), Map.of("a", "A3", "bb", "10"));
+        addOneRecordDocument(db, new Document("path4", "name", null), Map.of("a", "A4"));
+
+        var desc = new QueryParser().parseQuery(db, "from name select a, bb order by bb desc, a").execute()
+            .map(m -> m.get("a")).collect(Collectors.toList());
+        var limited = new QueryParser().parseQuery(db, "from name select a, bb order by bb desc, a limit 2 offset 1").execute()
+            .map(m -> m.get("a")).collect(Collectors.toList());
+
+        assertThat(desc, equalTo(List.of("A4", "A3", "A", "A2")));
+        assertThat(limited, equalTo(List.of("A3", "A")));
+        assertThat(new QueryParser().parseQuery(db, "from name select a limit 3").execute().count(), is(3l));
+        assertThat(new QueryParser().parseQuery(db, "from name select a limit 3 offset 2").execute().count(), is(2l));
+        assertEmptyResult(new QueryParser().parseQuery(db, "from name select a order by a limit 0").execute());
+    }
+
+    @Test
+    public void shouldKnowColumnsOfOuterSelect() {
+        var db = prepare2EntryDB();
+
+        assertThat(new QueryParser().parseQuery(db, "from (from name select *) select a x, bb order by x").getColumns(),
+                equalTo(List.of("x", "bb")));
+        assertThat(new QueryParser().parseQuery(db, "from name select *").getColumns(), is(nullValue()));
+    }
+
     @Test 
     public void shouldSelectCount() {
         System.out.println("====== start select count =======");
@@ -286,4 +317,104 @@ public class QueryParserTest {
 
         assertSingleResult(new QueryParser().parseQuery(db, query).execute(), "cnt", "2");
     }
+
+    @Test
+    public void shouldUseIndexForEqualityAndIn() {
+        var db = prepare2EntryDB();
+
+        assertSingleResult(new QueryParser().parseQuery(db, "from * where a = 'A2' select bb").execute(), "bb", "0");
+        assertSingleResult(new QueryParser().parseQuery(db, "from name n where (n.a in ('A', 'x')) and ('1' = bb) select a").execute(), "a", "A");
+        assertSingleResult(new QueryParser().parseQuery(db, "from * where (a ~ '2$') and (length(bb) = 1) select a").execute(), "a", "A2");
+        assertEmptyResult(new QueryParser().parseQuery(db, "from /path/name where a = 'A2' select a").execute());
+    }
+
+    @Test
+    public void shouldSelectAlternative() {
+        var db = prepare2EntryDB();
+        addOneRecordDocument(db, new Document("path3", "name", null), Map.of("a", "A3", "bb", "2"));
+
+        assertThat(new QueryParser().parseQuery(db, "from * where (a = 'A') or (bb = 2) select a").execute().count(), is(2l));
+        assertSingleResult(new QueryParser().parseQuery(db, "from * where (a = 'A2') or (length(bb) > 5) select a").execute(), "a", "A2");
+    }
+
+    @Test
+    public void shouldSkipEntriesWithoutAttributeOnRegexpMatch() {
+        var db = prepare2EntryDB();
+        addOneRecordDocument(db, new Document("path3", "other", null), Map.of("c", "C"));
+
+        assertSingleResult(new QueryParser().parseQuery(db, "from * where c ~ 'C' select c").execute(), "c", "C");
+    }
+
+    @Test
+    public void shouldUseIndexForComparisons() {
+        var db = prepare2EntryDB();
+        addOneRecordDocument(db, new Document("path3", "name", null), Map.of("a", "A3", "bb", "x"));
+        addOneRecordDocument(db, new Document("path4", "name", null), Map.of("a", "A4", "bb", "-7"));
+
+        assertSingleResult(new QueryParser().parseQuery(db, "from * where bb > 0 select a").execute(), "a", "A");
+        assertSingleResult(new QueryParser().parseQuery(db, "from * where (bb >= 0) and (1 > bb) select a").execute(), "a", "A2");
+        assertSingleResult(new QueryParser().parseQuery(db, "from name n where n.bb < '0' select a").execute(), "a", "A4");
+        assertThat(new QueryParser().parseQuery(db, "from * where bb <= 1 select a").execute().count(), is(3l));
+        assertEmptyResult(new QueryParser().parseQuery(db, "from * where bb > 'x' select a").execute());
+    }
+
+    @Test
+    public void shouldHashJoinLikeNestedLoop() {
+        var db = prepare2EntryDB();
+        addOneRecordDocument(db, new Document("path3", "other", null), Map.of("a", "A", "c", "C"));
+        addOneRecordDocument(db, new Document("path4", "other", null), Map.of("c", "C2"));
+        var hashJoin = "from name n, other o where n.a = o.a select n.bb, o.c";
+        var nestedLoop = "from name n, other o where (n.a = o.a) = true select n.bb, o.c";
+
+        var r1 = new QueryParser().parseQuery(db, hashJoin).execute().map(Object::toString).sorted().collect(Collectors.toList());
+        var r2 = new QueryParser().parseQuery(db, nestedLoop).execute().map(Object::toString).sorted().collect(Collectors.toList());
+
+        assertThat(r1, equalTo(r2));
+        assertThat(r1.size(), is(2));
+    }
+
+    @Test
+    public void shouldReorderJoinsWithSameResult() {
+        var db = prepare2EntryDB();
+        addOneRecordDocument(db, new Document("path3", "other", null), Map.of("a", "O", "c", "C"));
+        addOneRecordDocument(db, new Document("path4", "other", null), Map.of("a", "O2", "c", "C2"));
+        addOneRecordDocument(db, new Document("path5", "third", null), Map.of("a", "A", "c", "C"));
+        addOneRecordDocument(db, new Document("path6", "third", null), Map.of("a", "A2", "c", "C3"));
+        var reordered = "from name n, other o, third t where (n.a = t.a) and (o.c = t.c) and (n.bb < 5) select a x, c y, n.a na, o.a oa, t.c tc";
+        var listed = "from name n, other o, third t where ((n.a = t.a) = true) and ((o.c = t.c) = true) and ((n.bb < 5) = true) select a x, c y, n.a na, o.a oa, t.c tc";
+
+        var r1 = new QueryParser().parseQuery(db, reordered).execute().map(TreeMap::new).map(Object::toString).sorted().collect(Collectors.toList());
+        var r2 = new QueryParser().parseQuery(db, listed).execute().map(TreeMap::new).map(Object::toString).sorted().collect(Collectors.toList());
+
+        assertThat(r1, equalTo(r2));
+        assertThat(r1.size(), is(1));
+    }
+
+    @Test
+    public void shouldNotJoinSubqueryWithPrecedingSource() {
+        var db = prepare2EntryDB();
+        addOneRecordDocument(db, new Document("path3", "other", null), Map.of("a", "A", "c", "C"));
+        var query = "from name n, (from other select *) o where n.a = o.a select n.bb, o.c";
+
+        var r = new QueryParser().parseQuery(db, query).execute().collect(Collectors.toList());
+
+        assertThat(r.size(), is(1));
+        assertThat(r.get(0).get("c"), equalTo("C"));
+    }
+
+    @Test
+    public void shouldCompareNumbersOfIndexAndRowsAlike() {
+        var db = new DB();
+        var values = List.of("3", "+3", "\u0663", "00000000000000000003", "4x", "-3");
+        for (int i = 0; i < values.size(); i++)
+            addOneRecordDocument(db, new Document("p", "d" + i, null), Map.of("n", values.get(i)));
+
+        var pushed = new QueryParser().parseQuery(db, "from * where n >= 3 select n").execute()
+            .map(m -> m.get("n")).collect(Collectors.toSet());
+        var filtered = new QueryParser().parseQuery(db, "from * select n, n >= 3 c").execute()
+            .filter(m -> "t".equals(m.get("c"))).map(m -> m.get("n")).collect(Collectors.toSet());
+
+        assertThat(pushed, equalTo(Set.of("3", "+3", "\u0663", "00000000000000000003")));
+        assertThat(filtered, equalTo(pushed));
+    }
 }
@@ -0,0 +1,51 @@
+package pl.kretkowl.tdb.query;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RowViewsTest {
+
+    @Test
+    public void aliasedShouldShowAttributesUnderBothNames() {
+        var source = new HashMap<String, String>();
+        source.put("a", "A");
+        source.put("n", null);
+        var row = RowViews.aliased("t").apply(source);
+
+        assertThat(row.get("t.a"), is("A"));
+        assertThat(row.get("a"), is("A"));
+        assertThat(row.containsKey("t.n"), is(true));
+        assertThat(row.containsKey("u.a"), is(false));
+        assertThat(row.get("t.x"), is(nullValue()));
+        var expected = new HashMap<>(source);
+        expected.put("t.a", "A");
+        expected.put("t.n", null);
+        assertThat(row, equalTo(expected));
+    }
+
+    @Test
+    public void joinedShouldPreferSecondUnlessShadowed() {
+        var first = RowViews.aliased("p").apply(Map.of("a", "1", "b", "2"));
+        var second = RowViews.aliased("q").apply(Map.of("a", "3", "c", "4"));
+
+        var plain = RowViews.joined(first, second, List.of());
+        var shadowed = RowViews.joined(first, second, List.of("p"));
+
+        assertThat(plain.get("a"), is("3"));
+        assertThat(plain.get("p.a"), is("1"));
+        assertThat(shadowed.get("a"), is("1"));
+        assertThat(shadowed.get("c"), is("4"));
+        assertThat(shadowed.get("q.a"), is("3"));
+        assertThat(shadowed.size(), is(7));
+        assertThat(shadowed.get("a"), equalTo(Map.copyOf(shadowed).get("a")));
+        assertThat(RowViews.joined(first, Map.of(), List.of()), is(first));
+    }
+}
@@ -0,0 +1,145 @@
+package pl.kretkowl.tdb.query;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.kretkowl.tdb.model.DB;
+import pl.kretkowl.tdb.model.Document;
+import pl.kretkowl.tdb.model.Entry;
+
+public class SortedRowsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, String> row(int i) {
+        var row = new HashMap<String, String>();
+        row.put("i", Integer.toString(i));
+        row.put("k", i % 7 == 0 ? null : Integer.toString(i % 13));
+        row.put("s", "żółw " + i);
+        return row;
+    }
+
+    private static List<Map<String, String>> sort(SortedRows sorted) {
+        for (int i = 0; i < 500; i++)
+            sorted.add(row(i));
+        return sorted.sorted().collect(toList());
+    }
+
+    private long runFiles() throws IOException {
+        try (var files = Files.list(folder.getRoot().toPath())) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void shouldSpillRunsAndMergeThemInOrder() throws IOException {
+        var order = List.of(new Operators.Order(m -> m.get("k"), true), new Operators.Order(m -> m.get("s"), false));
+        var inMemory = sort(new SortedRows(order, Long.MAX_VALUE, folder.getRoot().toPath()));
+        var spilled = new SortedRows(order, 2000, folder.getRoot().toPath());
+
+        var merged = sort(spilled);
+
+        assertThat(merged, equalTo(inMemory));
+        assertThat(merged.get(0).get("k"), is((String) null));
+        assertThat(merged.get(merged.size() - 1).get("k"), is("0"));
+        assertThat(runFiles(), is(0l));
+    }
+
+    @Test
+    public void shouldKeepInputOrderOfEqualRows() {
+        var order = List.of(new Operators.Order(m -> m.get("k"), false));
+        var merged = sort(new SortedRows(order, 1000, folder.getRoot().toPath()));
+
+        for (int i = 1; i < merged.size(); i++)
+            if (Objects.equals(merged.get(i).get("k"), merged.get(i - 1).get("k")))
+                assertThat(Integer.parseInt(merged.get(i).get("i")) > Integer.parseInt(merged.get(i - 1).get("i")), is(true));
+    }
+
+    @Test
+    public void shouldDeleteRunsWhenStreamClosedBeforeEnd() throws IOException {
+        var sorted = new SortedRows(List.of(new Operators.Order(m -> m.get("s"), false)), 2000, folder.getRoot().toPath());
+        for (int i = 0; i < 500; i++)
+            sorted.add(row(i));
+
+        try (var rows = sorted.sorted()) {
+            assertThat(rows.limit(3).count(), is(3l));
+            assertThat(runFiles() > 0, is(true));
+        }
+
+        assertThat(runFiles(), is(0l));
+    }
+
+    @Test
+    public void shouldDeleteRunsOfQueryNotReadToEnd() throws IOException {
+        var qc = new QueryContext(new DB(), 2000);
+        qc.setSpillDirectory(folder.getRoot().toPath());
+        qc.addPartial(ctx -> IntStream.range(0, 500).mapToObj(SortedRowsTest::row));
+        qc.addPartial(Operators.sort(0, List.of(new Operators.Order(m -> m.get("s"), false))));
+        qc.addPartial(Operators.limit(1, 0, 3));
+
+        try (var rows = qc.execute()) {
+            assertThat(rows.count(), is(3l));
+        }
+
+        assertThat(runFiles(), is(0l));
+    }
+
+    @Test
+    public void shouldDeleteRunsWhenQueryFails() throws IOException {
+        var qc = new QueryContext(new DB(), 2000);
+        qc.setSpillDirectory(folder.getRoot().toPath());
+        qc.addPartial(ctx -> IntStream.range(0, 500).mapToObj(i -> {
+            if (i == 400)
+                throw new IllegalStateException();
+            return row(i);
+        }));
+        qc.addPartial(Operators.sort(0, List.of(new Operators.Order(m -> m.get("s"), false))));
+
+        try {
+            qc.execute();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertThat(runFiles(), is(0l));
+    }
+
+    @Test
+    public void shouldReadSortedRowsOfParallelQueryAsStream() throws IOException {
+        var db = new DB();
+        var doc = new Document("path", "name", null);
+        db.add(doc, IntStream.range(0, QueryContext.PARALLEL_THRESHOLD + 10)
+                .mapToObj(i -> new Entry(doc, i, Map.of("i", Integer.toString(i), "s", "żółw " + i)))
+                .collect(Collectors.toSet()));
+        var query = "from * select i, s order by s desc";
+        var sequential = new QueryParser().parseQuery(db, query).execute().collect(toList());
+        var qc = new QueryParser().parseQuery(db, query);
+        qc.setMemoryLimit(1_000_000);
+        qc.setSpillDirectory(folder.getRoot().toPath());
+        qc.setParallelism(3);
+
+        try (var rows = qc.execute()) {
+            assertThat(qc.isParallel(), is(true));
+            assertThat(runFiles() > 0, is(true));
+            assertThat(rows.collect(toList()), equalTo(sequential));
+        }
+
+        assertThat(runFiles(), is(0l));
+    }
+}